@@ -1,6 +1,5 @@
 package com.gbft.framework.coordination;
 
-import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -30,6 +29,7 @@ import com.gbft.framework.data.Event.EventType;
 import com.gbft.framework.data.MessageData;
 import com.gbft.framework.data.ReportData;
 import com.gbft.framework.data.ReportData.ReportItem;
+import com.gbft.framework.data.RequestData;
 import com.gbft.framework.data.UnitData;
 import com.gbft.framework.demo.DemoDataUtil;
 import com.gbft.framework.demo.MetricsDataItem;
@@ -40,9 +40,8 @@ import com.gbft.framework.utils.BenchmarkManager;
 import com.gbft.framework.utils.Config;
 import com.gbft.framework.utils.DataUtils;
 import com.gbft.framework.utils.EntityMapUtils;
+import com.gbft.framework.utils.Payloads;
 import com.gbft.framework.utils.Printer;
-import com.gbft.framework.utils.RandomDataStream;
-import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 
 public class CoordinatorUnit extends CoordinatorBase {
@@ -60,6 +59,8 @@ public class CoordinatorUnit extends CoordinatorBase {
     private Thread receiveFromInQueueReplica;
     public final long MESSAGE_WAIT_TIME = 100;
     protected BenchmarkManager benchmarkManager;
+    // only one node per request sends its reply payload
+    private boolean designatedResponder;
 
     public String defaultProtocol;
     public int port;
@@ -90,6 +91,7 @@ public class CoordinatorUnit extends CoordinatorBase {
             initFromConfig(event.getConfigData().getDataMap(), event.getConfigData().getDefaultProtocol(), event.getConfigData().getUnitsList());
             defaultProtocol = event.getConfigData().getDefaultProtocol();
             Config.setCurrentProtocol(defaultProtocol);
+            designatedResponder = Config.bool("benchmark.designated-responder");
 
             var clientType = Config.string("benchmark.client");
             EntityMapUtils.getUnitClients(myUnit).forEach(id -> entities.put(id, genClient(clientType, id)));
@@ -360,11 +362,12 @@ public class CoordinatorUnit extends CoordinatorBase {
                 var requests = message.getRequestsList();
                 var m = message.toBuilder().clearRequests();
                 for (var request : requests) {
-                    try {
-                        m.addRequests(request.toBuilder().clearRequestDummy().setRequestDummy(ByteString.readFrom(new RandomDataStream(request.getReplySize()))));
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                    // results of other clients' requests go without payload, see DataUtils.splitReply
+                    if (!message.getTargetsList().contains(request.getClient()) || !isResponder(request, sender)) {
+                        m.addRequests(request.toBuilder().clearRequestDummy());
+                        continue;
                     }
+                    m.addRequests(request.toBuilder().clearRequestDummy().setRequestDummy(Payloads.create(request.getReplySize())));
                 }
                 sizeTransformedMessages.add(m.build());
             } else {
@@ -376,6 +379,19 @@ public class CoordinatorUnit extends CoordinatorBase {
         sendEvent(units, event);
     }
 
+    /**
+     * With `benchmark.designated-responder`, the reply payload of a request is only
+     * sent by one node, rotated by request, the other nodes only send its result.
+     * Clients match replies on the block digest and results, not on the payload.
+     */
+    private boolean isResponder(RequestData request, int sender) {
+        if (!designatedResponder || entities.get(sender).isClient()) {
+            return true;
+        }
+        var index = Math.floorMod(request.getClient() + request.getRequestNum(), (long) EntityMapUtils.nodeCount());
+        return EntityMapUtils.getNodeIndex(sender) == index;
+    }
+
     public void initFromConfig(Map<String, String> configContent, String defaultProtocol, List<UnitData> unitData) {
         initFromConfig(configContent, defaultProtocol);
 
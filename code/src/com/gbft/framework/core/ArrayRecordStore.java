@@ -0,0 +1,35 @@
+package com.gbft.framework.core;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ArrayRecordStore implements RecordStore {
+
+    private final AtomicIntegerArray records;
+
+    public ArrayRecordStore(int size, int defaultValue) {
+        records = new AtomicIntegerArray(size);
+        for (var i = 0; i < size; i++) {
+            records.set(i, defaultValue);
+        }
+    }
+
+    @Override
+    public int size() {
+        return records.length();
+    }
+
+    @Override
+    public int get(int record) {
+        return records.get(record);
+    }
+
+    @Override
+    public void set(int record, int value) {
+        records.set(record, value);
+    }
+
+    @Override
+    public int addAndGet(int record, int delta) {
+        return records.addAndGet(record, delta);
+    }
+}
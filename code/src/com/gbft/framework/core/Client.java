@@ -178,6 +178,8 @@ public class Client extends Entity {
                 rolePlugin.roleReadLock.unlock();
             }
 
+            // the leader owning the request's bucket when several leaders order in parallel
+            seqnum = rolePlugin.getRequestSequence(seqnum, request);
             var targets = rolePlugin.getRoleEntities(seqnum, view, StateMachine.NORMAL_PHASE, requestTargetRole);
 
             if (request.getOperationValue() == RequestData.Operation.READ_ONLY_VALUE) {
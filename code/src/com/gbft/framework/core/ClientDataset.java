@@ -1,9 +1,7 @@
 package com.gbft.framework.core;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.stream.IntStream;
 
 import com.gbft.framework.data.RequestData;
@@ -12,36 +10,45 @@ import com.gbft.framework.utils.AdvanceConfig;
 import com.gbft.framework.utils.Config;
 import com.gbft.framework.utils.DataUtils;
 
-public class ClientDataset extends Dataset {
+/**
+ * Client view of the dataset, the last replied value of every record and the
+ * values expected once pending requests execute, used to generate valid requests.
+ *
+ * Clients never serve or transfer state, so unlike `Dataset` there is no state
+ * tree, digest or execution scheduler to maintain on replies.
+ */
+public class ClientDataset {
 
     private int clientId;
+    private RecordStore records;
     private Random random;
-    private Map<Integer, LongAdder> lookahead;
+    private AtomicLongArray lookahead;
 
     public ClientDataset(int clientId) {
-        super();
-
         this.clientId = clientId;
 
+        records = Dataset.createRecordStore();
         random = new Random();
-        lookahead = new HashMap<>();
-        IntStream.range(0, RECORD_COUNT)
-                 .forEach(record -> lookahead.computeIfAbsent(record, x -> new LongAdder()).add(DEFAULT_VALUE));
+        lookahead = new AtomicLongArray(Dataset.RECORD_COUNT);
+        IntStream.range(0, Dataset.RECORD_COUNT).forEach(record -> lookahead.set(record, Dataset.DEFAULT_VALUE));
     }
 
-    @Override
-    public void update(RequestData request, int value) {
-        super.update(request, value);
+    public int get(int record) {
+        return records.get(record);
+    }
 
+    public void update(RequestData request, int value) {
         var record = request.getRecord();
+        records.set(record, value);
+
         var op = request.getOperation();
 
         switch (op) {
         case INC:
-            lookahead.get(record).increment();
+            lookahead.incrementAndGet(record);
             break;
         case ADD:
-            lookahead.get(record).add(request.getValue());
+            lookahead.addAndGet(record, request.getValue());
             break;
         default:
             break;
@@ -56,22 +63,22 @@ public class ClientDataset extends Dataset {
 
         switch (operation) {
         case ADD:
-            value = random.nextInt(DEFAULT_VALUE);
+            value = random.nextInt(Dataset.DEFAULT_VALUE);
             break;
         case SUB:
-            var max = Math.min(DEFAULT_VALUE, lookahead.get(record).intValue());
+            var max = (int) Math.min(Dataset.DEFAULT_VALUE, lookahead.get(record));
             if (max <= 0) { // < 0 to fix #47
                 operation = Operation.NOP;
             } else {
                 value = random.nextInt(max);
-                lookahead.get(record).add(-value);
+                lookahead.addAndGet(record, -value);
             }
             break;
         case DEC:
-            if (lookahead.get(record).intValue() < 1) {
+            if (lookahead.get(record) < 1) {
                 operation = Operation.NOP;
             } else {
-                lookahead.get(record).decrement();
+                lookahead.decrementAndGet(record);
             }
             break;
         default:
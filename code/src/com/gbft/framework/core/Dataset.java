@@ -2,88 +2,349 @@ package com.gbft.framework.core;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import com.gbft.framework.data.RequestData;
 import com.gbft.framework.utils.Config;
-import com.gbft.framework.utils.DataUtils;
+import com.gbft.framework.utils.StateTree;
+import com.google.protobuf.ByteString;
 
-public class Dataset {
+public class Dataset implements ReplicatedStateMachine {
 
-    protected Map<Integer, AtomicInteger> records;
+    protected RecordStore records;
+    protected ExecutionScheduler scheduler;
+    protected StateTree tree;
+
+    // snapshots still sharing records with the live store
+    protected List<RecordSnapshot> pendingSnapshots = new CopyOnWriteArrayList<>();
 
     public static final int DEFAULT_VALUE = 1000;
     public static final int RECORD_COUNT = Config.integer("workload.dataset-size");
 
+    // array -> AtomicIntegerArray on heap, off-heap -> native MemorySegment
+    public static final String BACKEND = Config.string("workload.dataset-backend");
+
+    // children per node of the state tree
+    public static final int TREE_FANOUT = Config.integer("workload.state-tree-fanout") > 1
+            ? Config.integer("workload.state-tree-fanout") : 16;
+
     public Dataset() {
-        records = DataUtils.concurrentMapWithDefaults(RECORD_COUNT, x -> new AtomicInteger(DEFAULT_VALUE));
+        records = createRecordStore();
+
+        tree = StateTree.of(RECORD_COUNT, TREE_FANOUT, record -> DEFAULT_VALUE);
+
+        scheduler = new ExecutionScheduler(Config.integer("benchmark.execution-threads"));
+    }
+
+    /**
+     * @return store of `workload.dataset-size` records on the configured backend, every record at its default value
+     */
+    static RecordStore createRecordStore() {
+        if (BACKEND.equals("off-heap")) {
+            return new OffHeapRecordStore(RECORD_COUNT, DEFAULT_VALUE);
+        } else {
+            return new ArrayRecordStore(RECORD_COUNT, DEFAULT_VALUE);
+        }
+    }
+
+    @Override
+    public Map<Long, Integer> executeBatch(List<RequestData> requestBlock) {
+        return scheduler.execute(this, requestBlock);
+    }
+
+    /**
+     * Reads single records, each reply sees the record between two atomic updates
+     */
+    @Override
+    public Map<Long, Integer> query(List<RequestData> requests) {
+        var replies = new HashMap<Long, Integer>();
+        for (var request : requests) {
+            compute(request);
+            replies.put(request.getRequestNum(), records.get(request.getRecord()));
+        }
+        return replies;
+    }
+
+    /**
+     * Take a copy-on-write snapshot in O(1), records are copied in the background
+     * or by the first write touching them, whichever comes first.
+     * @return record -> value in record order
+     */
+    @Override
+    public Map<Integer, Integer> snapshot() {
+        var snapshot = new RecordSnapshot(records);
+        pendingSnapshots.add(snapshot);
+
+        new Thread(() -> {
+            snapshot.materialize();
+            pendingSnapshots.remove(snapshot);
+        }).start();
+
+        return snapshot;
     }
 
-    // use this for copying service state
-    public Dataset(Dataset dataset) {
-        records = new TreeMap<>();
-        for (var entry : dataset.records.entrySet()) {
-            this.records.put(entry.getKey(), new AtomicInteger(entry.getValue().get()));
+    /**
+     * Maintained on every write, O(1) regardless of the dataset size
+     */
+    @Override
+    public ByteString digest() {
+        return tree.getDigest();
+    }
+
+    @Override
+    public StateTree getStateTree() {
+        return tree;
+    }
+
+    @Override
+    public void restore(Map<Integer, Integer> snapshot) {
+        for (var entry : snapshot.entrySet()) {
+            int record = entry.getKey();
+            beforeWrite(record);
+            tree.update(record, records.get(record), entry.getValue());
+            records.set(record, entry.getValue());
         }
     }
 
-    public void setRecords(Map<Integer, Integer> records) {
-        this.records.clear();
-        for (var entry : records.entrySet()) {
-            this.records.put(entry.getKey(), new AtomicInteger(entry.getValue()));
+    // preserve the current value for snapshots that have not copied the record yet
+    private void beforeWrite(int record) {
+        for (var snapshot : pendingSnapshots) {
+            if (!snapshot.isMaterialized()) {
+                snapshot.preserve(record);
+            }
         }
     }
-    
-    public Map<Integer, AtomicInteger> getRecords() {
-        return records;
+
+    public int size() {
+        return records.size();
+    }
+
+    public int get(int record) {
+        return records.get(record);
     }
 
     public int execute(RequestData request) {
         var op = request.getOperation();
         var record = request.getRecord();
 
-        // dummy computation
-        if (request.getComputeFactor() > 0) {
-            var dummy_counter = 0;
-            var random = new Random();
-            for (int i = 0; i < request.getComputeFactor(); i ++) {
-                dummy_counter += random.nextInt();
-            }
-            try {
-                OutputStream.nullOutputStream().write(dummy_counter);
-            } catch (IOException e) {}
-        }
+        compute(request);
 
         int value = 0;
+        int previous = 0;
+
+        if (op != RequestData.Operation.READ_ONLY) {
+            beforeWrite(record);
+            previous = records.get(record);
+        }
 
         switch (op) {
         case ADD:
-            value = records.get(record).addAndGet(request.getValue());
+            value = records.addAndGet(record, request.getValue());
             break;
         case SUB:
-            value = records.get(record).addAndGet(-request.getValue());
+            value = records.addAndGet(record, -request.getValue());
             break;
         case INC:
-            value = records.get(record).incrementAndGet();
+            value = records.addAndGet(record, 1);
             break;
         case DEC:
-            value = records.get(record).decrementAndGet();
+            value = records.addAndGet(record, -1);
             break;
         case READ_ONLY:
-            value = records.get(record).get();
+            value = records.get(record);
         default:
-            value = records.get(record).get();
+            value = records.get(record);
+        }
+
+        if (op != RequestData.Operation.READ_ONLY) {
+            tree.update(record, previous, value);
         }
 
         return value;
     }
 
+    /**
+     * ADD/SUB/INC/DEC commute, so requests on one record are folded into a single
+     * atomic update, each reply is derived from the running delta at its position.
+     * @param requestBlock requests in sequence order
+     * @param indexes indexes of requests in the block touching the same record, in block order
+     * @param values reply value of each request in the block, filled for the given indexes
+     */
+    public void executeCoalesced(List<RequestData> requestBlock, List<Integer> indexes, int[] values) {
+        var record = requestBlock.get(indexes.get(0)).getRecord();
+
+        var delta = 0;
+        for (var index : indexes) {
+            var request = requestBlock.get(index);
+            compute(request);
+
+            switch (request.getOperation()) {
+            case ADD:
+                delta += request.getValue();
+                break;
+            case SUB:
+                delta -= request.getValue();
+                break;
+            case INC:
+                delta += 1;
+                break;
+            case DEC:
+                delta -= 1;
+                break;
+            default:
+                break;
+            }
+            values[index] = delta;
+        }
+
+        if (delta != 0) {
+            beforeWrite(record);
+        }
+        var base = records.addAndGet(record, delta) - delta;
+        if (delta != 0) {
+            tree.update(record, base, base + delta);
+        }
+        for (var index : indexes) {
+            values[index] += base;
+        }
+    }
+
+    // dummy computation
+    private void compute(RequestData request) {
+        if (request.getComputeFactor() > 0) {
+            var dummy_counter = 0;
+            var random = new Random();
+            for (int i = 0; i < request.getComputeFactor(); i ++) {
+                dummy_counter += random.nextInt();
+            }
+            try {
+                OutputStream.nullOutputStream().write(dummy_counter);
+            } catch (IOException e) {}
+        }
+    }
+
     public void update(RequestData request, int value) {
         var record = request.getRecord();
-        records.get(record).set(value);
+        beforeWrite(record);
+        tree.update(record, records.get(record), value);
+        records.set(record, value);
     }
 
+    /**
+     * Copy-on-write snapshot of a record store.
+     *
+     * Every record is preserved at most once, either by a writer right before it
+     * modifies the live record, or by the background materializer. Readers of the
+     * snapshot always see the value the record had when the snapshot was taken.
+     */
+    private static class RecordSnapshot extends AbstractMap<Integer, Integer> {
+
+        private static final int LIVE = 0;
+        private static final int COPYING = 1;
+        private static final int PRESERVED = 2;
+
+        private final RecordStore live;
+        private final int[] values;
+        private final AtomicIntegerArray states;
+        private final AtomicInteger remaining;
+
+        private RecordSnapshot(RecordStore live) {
+            this.live = live;
+            values = new int[live.size()];
+            states = new AtomicIntegerArray(live.size());
+            remaining = new AtomicInteger(live.size());
+        }
+
+        /**
+         * Copy the live value of a record unless already preserved.
+         * Must be called before the live record is modified.
+         */
+        private void preserve(int record) {
+            if (states.get(record) == PRESERVED) {
+                return;
+            }
+
+            if (states.compareAndSet(record, LIVE, COPYING)) {
+                values[record] = live.get(record);
+                states.set(record, PRESERVED);
+                remaining.decrementAndGet();
+            } else {
+                while (states.get(record) != PRESERVED) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+
+        private void materialize() {
+            for (var record = 0; record < values.length; record++) {
+                preserve(record);
+            }
+        }
+
+        private boolean isMaterialized() {
+            return remaining.get() == 0;
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public Integer get(Object key) {
+            if (key instanceof Integer record && record >= 0 && record < values.length) {
+                preserve(record);
+                return values[record];
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Integer record && record >= 0 && record < values.length;
+        }
+
+        @Override
+        public Set<Entry<Integer, Integer>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return values.length;
+                }
+
+                @Override
+                public Iterator<Entry<Integer, Integer>> iterator() {
+                    return new Iterator<>() {
+                        private int record = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return record < values.length;
+                        }
+
+                        @Override
+                        public Entry<Integer, Integer> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            var entry = new SimpleImmutableEntry<>(record, get(record));
+                            record += 1;
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
+    }
 }
@@ -8,7 +8,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -35,19 +34,28 @@ import com.gbft.framework.statemachine.Condition;
 import com.gbft.framework.statemachine.StateMachine;
 import com.gbft.framework.statemachine.Transition;
 import com.gbft.framework.statemachine.Transition.UpdateMode;
+import com.gbft.framework.utils.BatchingController;
 import com.gbft.framework.utils.BenchmarkManager;
 import com.gbft.framework.utils.CheckpointManager;
+import com.gbft.framework.utils.ClientTable;
 import com.gbft.framework.utils.Config;
 import com.gbft.framework.utils.DataUtils;
 import com.gbft.framework.utils.EntityMapUtils;
 import com.gbft.framework.utils.FeatureManager;
+import com.gbft.framework.utils.Mempool;
 import com.gbft.framework.utils.MessageTally;
+import com.gbft.framework.utils.MultiSlotProposal;
 import com.gbft.framework.utils.MessageTally.QuorumId;
+import com.gbft.framework.utils.PipelineWindow;
 import com.gbft.framework.utils.Printer;
 import com.gbft.framework.utils.Printer.Verbosity;
+import com.gbft.framework.utils.SnapshotStore;
+import com.gbft.framework.utils.StateDigest;
 import com.gbft.plugin.role.BasicPrimaryPlugin;
 import com.gbft.plugin.role.PrimaryPassivePlugin;
 import com.gbft.framework.utils.Timekeeper;
+import com.gbft.framework.utils.VoteVector;
+import com.gbft.framework.utils.WriteAheadLog;
 import com.google.protobuf.ByteString;
 
 import io.grpc.Grpc;
@@ -68,22 +76,34 @@ public abstract class Entity {
 
     // Protocol Data
 
-    protected ConcurrentLinkedQueue<RequestData> pendingRequests;
+    protected Mempool pendingRequests;
     protected Map<Long, Long> reqnumToSeqnumMap;
+    protected ClientTable clientTable;
     protected CheckpointManager checkpointManager;
 
     public final List<RequestData> EMPTY_BLOCK;
     public final ByteString EMPTY_DIGEST;
 
-    public Dataset dataset;
+    protected ReplicatedStateMachine stateMachine;
 
     // Protocol State
 
     protected long nextSequence;
+    // highest own slot proposed ahead of nextSequence by a parallel leader
+    protected volatile long proposedSequence;
     protected long lastExecutedSequenceNum;
     protected long currentViewNum;
     protected Timekeeper timekeeper;
+    protected BatchingController batching;
+    protected PipelineWindow pipelineWindow;
     protected Map<Long, Transition> executionQueue;
+    protected Object executionLock = new Object();
+
+    // durable log of committed blocks and snapshots of stable checkpoints, null if disabled
+    protected WriteAheadLog wal;
+    protected SnapshotStore snapshots;
+    protected long loggedSequenceNum = -1L;
+    protected String recoveryReport;
 
     // Concurrency
 
@@ -163,21 +183,24 @@ public abstract class Entity {
 
         currentViewNum = 0L;
         nextSequence = 0L;
+        proposedSequence = -1L;
         lastExecutedSequenceNum = -1L;
         executionQueue = new HashMap<>();
 
-        pendingRequests = new ConcurrentLinkedQueue<>();
+        pendingRequests = new Mempool();
         reqnumToSeqnumMap = new ConcurrentHashMap<>();
+        clientTable = new ClientTable();
         checkpointManager = new CheckpointManager(this);
 
         updating = new HashSet<>();
         needsUpdate = new TreeSet<>();
         stateLock = new ReentrantLock();
 
-        dataset = new Dataset();
+        stateMachine = PluginManager.getStateMachine(this);
 
         threads = new ArrayList<>();
         timekeeper = new Timekeeper(this);
+        batching = new BatchingController(this, blockSize);
         threads.add(new Thread(() -> executor()));
         threads.add(new Thread(() -> triggerSlowProposal()));
         threads.add(new Thread(() -> aggStateUpdate()));
@@ -186,6 +209,7 @@ public abstract class Entity {
         pipelinePlugin = PluginManager.getPipelinePlugin(this);
         messagePlugins = PluginManager.getMessagePlugins(this);
         transitionPlugins = PluginManager.getTransitionPlugins(this);
+        pipelineWindow = new PipelineWindow(pipelinePlugin.getMaxActiveSequences(), pipelinePlugin.isWindowAdjustable());
 
         EMPTY_BLOCK = new ArrayList<>();
         EMPTY_DIGEST = DataUtils.getDigest(EMPTY_BLOCK);
@@ -201,7 +225,7 @@ public abstract class Entity {
 
         checkpointManager.getCheckpoint(0).setProtocol(coordinator.defaultProtocol);
         checkpointManager.getCheckpoint(0).beginTimestamp = System.nanoTime();
-        rolePlugin.episodeLeaderMode.put(0, Config.string("protocol.general.leader").equals("stable") ? 0 : 1);
+        rolePlugin.episodeLeaderMode.put(0, RolePlugin.parseLeaderMode(Config.string("protocol.general.leader")));
 
         if (!isClient()) {
             // start the grpc server
@@ -235,7 +259,7 @@ public abstract class Entity {
             synchronized (slowProposalRequests) {
                 // wake up when met the block size
                 while (slowProposalRequests.size() == 0 || 
-                        (pendingRequests.size() + slowProposalRequests.size() < blockSize && running)) {
+                        (pendingRequests.size() + slowProposalRequests.size() < batching.getTargetSize() && running)) {
                     try {
                         slowProposalRequests.wait();
                     } catch (InterruptedException e) {
@@ -259,16 +283,18 @@ public abstract class Entity {
                     // Notice that slow proposal may be triggered back and forth
                     // because prime `overwrites` the slow proposal attack
                     // here see if slowProposalRequests are removed
-                    if (pendingRequests.size() + slowProposalRequests.size() < blockSize) {
+                    var targetSize = batching.getTargetSize();
+                    if (pendingRequests.size() + slowProposalRequests.size() < targetSize) {
                         continue;
                     }
-                    var num_req = blockSize - pendingRequests.size();
+                    var num_req = targetSize - pendingRequests.size();
                     for (int i = 0; i < num_req; i++) {
                         pendingRequests.offer(slowProposalRequests.remove(0));
                     }
+                    batching.requestQueued();
                 }
                 // Printer.print(Verbosity.V, prefix, "[time-since-start=" + Printer.timeFormat(System.nanoTime() - systemStartTime, true) + "] packing slow proposal requests, ready for stateUpdate: nextSequence=" + nextSequence);
-                stateUpdateLoop(nextSequence);
+                stateUpdateLoop(getProposalSequence());
             }
         }
     }
@@ -329,7 +355,10 @@ public abstract class Entity {
         if (type == StateMachine.REQUEST) {
             var request = message.getRequestsList().get(0);
             var seqnum = getRequestSequence(request.getRequestNum());
-            if (seqnum == null) {
+            if (clientTable.isExecuted(request.getClient(), request.getRequestNum())) {
+                // retransmission, answer from the client table instead of ordering it again
+                resendReply(request);
+            } else if (seqnum == null) {
                 // slow proposal
                 if (slowProposalFault.getPerRequestDelay(this.id) > 0) {
                     // Printer.print(Verbosity.V, prefix, "[time-since-start=" + Printer.timeFormat(System.nanoTime() - systemStartTime, true) + "] add slow proposal: reqnum=" + request.getRequestNum());
@@ -344,34 +373,73 @@ public abstract class Entity {
                         }
                     }
                     // Printer.print(Verbosity.V, prefix, "[time-since-start=" + Printer.timeFormat(System.nanoTime() - systemStartTime, true) + "] received request: reqnum=" + request.getRequestNum());
-                    pendingRequests.offer(request);
-                    stateUpdateLoop(nextSequence);
+                    if (pendingRequests.offer(request)) {
+                        batching.requestQueued();
+                        stateUpdateLoop(getProposalSequence());
+                    }
                 }
             }
-        } else {
-            Long seqnum = message.getSequenceNum();
-            if (checkpointManager.getCheckpointNum(seqnum) < checkpointManager.getMinCheckpoint()) {
-                return;
+        } else if (VoteVector.isVector(message)) {
+            // authenticated once as a whole, tallied per sequence
+            for (var vote : VoteVector.expand(message)) {
+                tallyMessage(vote);
             }
-
-            if (!isValidMessage(message)) {
-                return;
+        } else if (MultiSlotProposal.isMultiSlot(message)) {
+            for (var proposal : MultiSlotProposal.expand(message)) {
+                tallyMessage(proposal);
             }
+        } else {
+            tallyMessage(message);
+        }
 
-            var checkpoint = checkpointManager.getCheckpointForSeq(seqnum);
-            checkpoint.tally(message);
-            checkpoint.addAggregationValue(message);
-            timekeeper.messageReceived(seqnum, currentViewNum, checkpoint.getState(seqnum), message);
+        var start = DataUtils.toLong(message.getTimestamp());
+        benchmarkManager.messageProcessed(start, System.nanoTime());
+    }
 
-            if (Printer.verbosity >= Verbosity.VVV) {
-                Printer.print(Verbosity.VVV, prefix, "Tally message ", message);
-            }
+    protected void tallyMessage(MessageData message) {
+        Long seqnum = message.getSequenceNum();
+        if (checkpointManager.getCheckpointNum(seqnum) < checkpointManager.getMinCheckpoint()
+                || seqnum <= checkpointManager.getReleasedSequenceNum()) {
+            return;
+        }
 
-            stateUpdateLoop(seqnum);
+        if (!isValidMessage(message)) {
+            return;
         }
 
-        var start = DataUtils.toLong(message.getTimestamp());
-        benchmarkManager.messageProcessed(start, System.nanoTime());
+        var checkpoint = checkpointManager.getCheckpointForSeq(seqnum);
+        checkpoint.tally(message);
+        checkpoint.addAggregationValue(message);
+        timekeeper.messageReceived(seqnum, currentViewNum, checkpoint.getState(seqnum), message);
+
+        if (Printer.verbosity >= Verbosity.VVV) {
+            Printer.print(Verbosity.VVV, prefix, "Tally message ", message);
+        }
+
+        stateUpdateLoop(seqnum);
+    }
+
+    /**
+     * Resend the reply of a client's latest executed request, older retransmissions are dropped
+     */
+    protected void resendReply(RequestData request) {
+        var reply = clientTable.getReply(request.getClient(), request.getRequestNum());
+        if (reply == null) {
+            return;
+        }
+
+        // the whole block's replies while retained, so the client sees the same reply set as from other nodes
+        Map<Long, Integer> replies = null;
+        if (reply.seqnum > checkpointManager.getReleasedSequenceNum()) {
+            replies = checkpointManager.getCheckpointForSeq(reply.seqnum).getReplies(reply.seqnum);
+        }
+        if (replies == null) {
+            replies = Map.of(reply.reqnum, reply.value);
+        }
+
+        var message = DataUtils.createMessage(reply.seqnum, currentViewNum, StateMachine.REPLY, id,
+                List.of(request.getClient()), List.of(reply.reqnum), null, replies, reply.digest);
+        sendMessage(processMessage(message));
     }
 
     public void stateUpdateLoop(long seqnum) {
@@ -402,13 +470,14 @@ public abstract class Entity {
 
         // TODO: concurrency control for leader rotation protocols
         if (seqnum <= lastExecutedSequenceNum || isExecuted(seqnum)
-                || (isPrimary(seqnum) && seqnum - lastExecutedSequenceNum > pipelinePlugin.getMaxActiveSequences())) {
+                || (isPrimary(seqnum) && seqnum - lastExecutedSequenceNum > pipelineWindow.get())) {
             stateLock.unlock();
             return null;
         }
         benchmarkManager.add(BenchmarkManager.IF1, 0, System.nanoTime());
 
-        if (seqnum > nextSequence) {
+        // a parallel leader proposes its own slots ahead, bounded only by the pipeline window above
+        if (seqnum > nextSequence && !(rolePlugin.isParallel(seqnum) && isPrimary(seqnum))) {
             needsUpdate.add(seqnum);
             stateLock.unlock();
             return null;
@@ -472,7 +541,14 @@ public abstract class Entity {
                                 var block = checkpoint.getRequestBlock(seqnum);
                                 if (block == null || block.isEmpty()) {
                                     synchronized (pendingLock) {
-                                        if (pendingRequests.size() < blockSize) {
+                                        // full block, or whatever is pending once the oldest request is due
+                                        var size = batching.getBlockSize(pendingRequests.size());
+                                        // an idle parallel leader fills its slot with an empty block,
+                                        // otherwise the sequences of the other leaders cannot execute
+                                        // only once the other leaders wait for the slot
+                                        var emptySlot = size == 0 && rolePlugin.isParallel(seqnum) && seqnum <= nextSequence
+                                                && !(learning && seqnum == exchangeSequence) && batching.isSlotDue(seqnum);
+                                        if (size == 0 && !emptySlot) {
                                             continue;
                                         }
 
@@ -483,19 +559,23 @@ public abstract class Entity {
                                             }
                                         }
 
-                                        block = new ArrayList<RequestData>(blockSize);
-                                        for (var i = 0; i < blockSize; i++) {
-                                            var request = pendingRequests.remove();
-                                            // carry the report quorum in the first request of this reserved block
-                                            if (learning && seqnum == exchangeSequence && isPrimary(seqnum) && i == 0) {
-                                                var reportQuorum = new ArrayList<LearningData>(REPORT_QUORUM);
-                                                reports.get(currentEpisodeNum.get()).entrySet().stream().limit(REPORT_QUORUM).forEach(entry -> {
-                                                    var learningDataBuilder = LearningData.newBuilder().putAllReport(entry.getValue());
-                                                    reportQuorum.add(learningDataBuilder.build());
-                                                });
-                                                request = request.toBuilder().addAllReportQuorum(reportQuorum).build();                                                
-                                            }
-                                            block.add(request);
+                                        block = new ArrayList<RequestData>(size);
+                                        size = pendingRequests.drainTo(block, size);
+                                        if (size == 0 && !emptySlot) {
+                                            continue;
+                                        }
+                                        // carry the report quorum in the first request of this reserved block
+                                        if (learning && seqnum == exchangeSequence && isPrimary(seqnum)) {
+                                            var reportQuorum = new ArrayList<LearningData>(REPORT_QUORUM);
+                                            reports.get(currentEpisodeNum.get()).entrySet().stream().limit(REPORT_QUORUM).forEach(entry -> {
+                                                var learningDataBuilder = LearningData.newBuilder().putAllReport(entry.getValue());
+                                                reportQuorum.add(learningDataBuilder.build());
+                                            });
+                                            block.set(0, block.get(0).toBuilder().addAllReportQuorum(reportQuorum).build());
+                                        }
+                                        batching.blockClosed(seqnum, size, pendingRequests.size());
+                                        if (rolePlugin.isParallel(seqnum)) {
+                                            proposedSequence = Math.max(proposedSequence, seqnum);
                                         }
                                     }
                                 }
@@ -519,7 +599,9 @@ public abstract class Entity {
                             timekeeper.stateUpdated(seqnum, transition.toState);
 
                             if (StateMachine.isIdle(currentState)) {
-                                benchmarkManager.sequenceStarted(seqnum, System.nanoTime());
+                                var now = System.nanoTime();
+                                benchmarkManager.sequenceStarted(seqnum, now);
+                                pipelineWindow.sequenceStarted(seqnum, now);
                             }
 
                             if (transition.updateMode == UpdateMode.AGGREGATION && checkpoint.getAggregationValues(seqnum).isEmpty()) {
@@ -612,6 +694,9 @@ public abstract class Entity {
     public void executor() {
         while (running) {
             Transition transition;
+            long seqnum;
+            long committed;
+            int backlog;
             synchronized (executionQueue) {
                 while (executionQueue.get(lastExecutedSequenceNum + 1) == null && running) {
                     try {
@@ -620,8 +705,36 @@ public abstract class Entity {
                     }    
                 }
 
-                transition = executionQueue.get(lastExecutedSequenceNum + 1);
-                executionQueue.entrySet().removeIf(entry -> entry.getKey() <= lastExecutedSequenceNum + 1); 
+                seqnum = lastExecutedSequenceNum + 1;
+                transition = executionQueue.get(seqnum);
+                executionQueue.entrySet().removeIf(entry -> entry.getKey() <= seqnum); 
+                backlog = executionQueue.size();
+
+                committed = seqnum;
+                while (wal != null && executionQueue.containsKey(committed + 1)) {
+                    committed += 1;
+                }
+            }
+
+            // log every block committed so far, so that they share one fsync
+            if (wal != null && transition != null) {
+                for (var seq = Math.max(seqnum, loggedSequenceNum + 1); seq <= committed; seq++) {
+                    var block = checkpointManager.getCheckpointForSeq(seq).getRequestBlock(seq);
+                    if (block == null) {
+                        break;
+                    }
+                    wal.append(seq, block);
+                    loggedSequenceNum = seq;
+                }
+                wal.await(seqnum);
+            }
+
+            // execute outside of the queue lock so that committing sequences are not blocked
+            synchronized (executionLock) {
+                if (transition == null || lastExecutedSequenceNum + 1 != seqnum) {
+                    // service state was replaced by state transfer in the meantime
+                    continue;
+                }
                 lastExecutedSequenceNum += 1;
 
                 execute(lastExecutedSequenceNum);
@@ -644,10 +757,16 @@ public abstract class Entity {
                             } catch (InterruptedException e) {
                             }
                         }
+                        if (wal != null) {
+                            wal.append(localSeq, checkpoint.getRequestBlock(localSeq));
+                            wal.await(localSeq);
+                        }
                         execute(localSeq);
                     }
 
                     benchmarkManager.sequenceExecuted(localSeq, System.nanoTime());
+                    batching.sequenceExecuted(localSeq);
+                    pipelineWindow.sequenceExecuted(localSeq, backlog);
                     checkpoint.setState(localSeq, transition.toState);
 
                     checkSwitching(localSeq);
@@ -657,12 +776,15 @@ public abstract class Entity {
                 // System.out.println("lastExecutedSequenceNum update to: " + lastExecutedSequenceNum);
             } else {
                 benchmarkManager.sequenceExecuted(lastExecutedSequenceNum, System.nanoTime());
+                batching.sequenceExecuted(lastExecutedSequenceNum);
+                pipelineWindow.sequenceExecuted(lastExecutedSequenceNum, backlog);
                 checkpoint.setState(lastExecutedSequenceNum, transition.toState);
 
                 checkSwitching(lastExecutedSequenceNum);
                 transition(lastExecutedSequenceNum, transition);
             }
             // checkSwitching(lastExecutedSequenceNum);
+            checkpointManager.releaseSequences(lastExecutedSequenceNum);
             stateUpdateLoop(lastExecutedSequenceNum + 1);
         }
     }
@@ -727,7 +849,7 @@ public abstract class Entity {
             rolePlugin.roleWriteLock.lock();
             try {
                 rolePlugin.episodeLeaderMode.put(currentEpisodeNum.get() + 1, 
-                        Config.string("protocol.general.leader").equals("stable") ? 0 : 1);
+                        RolePlugin.parseLeaderMode(Config.string("protocol.general.leader")));
                 System.out.println("leader mode set to be " + Config.string("protocol.general.leader") + " for the next episode");
                 Printer.print(Verbosity.V, prefix, "leader mode set to be " + Config.string("protocol.general.leader") + " for the next episode");
                 Printer.flush();
@@ -745,18 +867,125 @@ public abstract class Entity {
         }
     }
 
-    public void setServiceState(Map<Integer, Integer> service_state, long lastExecutedSequenceNum) {
+    /**
+     * Install fetched service state after verifying it against the checkpoint digest
+     * @param service_state full state, or whole subtrees of `level` differing from the local state
+     * @param level subtree level of a partial state, -1 for a full state
+     * @param digest checkpoint digest
+     * @param clientTable client table snapshot of the checkpoint agreed on by f + 1 nodes, null if there is none
+     * @return false if the resulting state would not match the digest or a record is out of range
+     */
+    public boolean setServiceState(Map<Integer, Integer> service_state, int level, ByteString digest,
+            ByteString clientTable, long lastExecutedSequenceNum) {
         // lock on execution
-        synchronized (executionQueue) {
-            dataset.setRecords(service_state);
-            
-            stateLock.lock();
-            this.lastExecutedSequenceNum = lastExecutedSequenceNum;
-            this.nextSequence = lastExecutedSequenceNum + 1;
-            stateLock.unlock();
+        synchronized (executionLock) {
+            synchronized (executionQueue) {
+                var tree = stateMachine.getStateTree();
+                var result = level >= 0 && tree != null ? tree.getDigestAfter(service_state, level)
+                        : checkpointManager.getCheckpointDigest(service_state);
+                if (result == null || !result.equals(digest)) {
+                    return false;
+                }
+
+                stateMachine.restore(service_state);
+
+                // executed requests and replies of the skipped sequences
+                if (clientTable == null || !this.clientTable.restore(clientTable)) {
+                    Printer.print(Verbosity.V, prefix, "No valid client table for the fetched checkpoint, "
+                            + "retransmissions of skipped requests are ordered again");
+                }
+
+                // keep the fetched state as the latest snapshot, the log before it is no longer needed
+                if (snapshots != null) {
+                    var checkpointNum = checkpointManager.getCheckpointNum(lastExecutedSequenceNum);
+                    checkpointManager.getCheckpoint(checkpointNum).setServiceState(stateMachine.snapshot(), digest);
+                    checkpointManager.getCheckpoint(checkpointNum).setClientTable(this.clientTable.snapshot());
+                    checkpointManager.saveCheckpoint(checkpointNum);
+                }
+
+                stateLock.lock();
+                this.lastExecutedSequenceNum = lastExecutedSequenceNum;
+                this.nextSequence = lastExecutedSequenceNum + 1;
+                stateLock.unlock();
 
-            new Thread(() -> stateUpdateLoop(lastExecutedSequenceNum + 1)).start();
+                executionQueue.notify();
+                new Thread(() -> stateUpdateLoop(lastExecutedSequenceNum + 1)).start();
+            }
         }
+
+        return true;
+    }
+
+    /**
+     * Resume from the latest local snapshot and replay only the log suffix after it,
+     * peers are asked for state only if the node missed a stable checkpoint while down.
+     * Invoked before the entity threads start.
+     */
+    protected void recover() {
+        if (wal == null || snapshots == null) {
+            return;
+        }
+
+        var begin = System.nanoTime();
+        var snapshot = snapshots.load();
+        var snapshotSeqnum = -1L;
+        if (snapshot != null) {
+            // verify before touching the live state, e.g. the dataset size changed
+            var tree = stateMachine.getStateTree();
+            if (tree != null && snapshot.getState().size() != tree.getSize()
+                    || !StateDigest.of(snapshot.getState()).toByteString().equals(snapshot.getDigest())) {
+                System.err.println(prefix + "Snapshot of checkpoint " + snapshot.getCheckpointNum()
+                        + " does not match the dataset or its digest, skip recovery");
+                return;
+            }
+            stateMachine.restore(snapshot.getState());
+            // requests executed before the snapshot, the log replay adds the later ones
+            if (!clientTable.restore(snapshot.getClientTable())) {
+                System.err.println(prefix + "Client table of checkpoint " + snapshot.getCheckpointNum() + " is malformed");
+            }
+
+            snapshotSeqnum = snapshot.getLastSequenceNum();
+            var checkpointNum = snapshot.getCheckpointNum();
+            checkpointManager.getCheckpoint(checkpointNum).setServiceState(snapshot.getState(), snapshot.getDigest());
+            checkpointManager.getCheckpoint(checkpointNum).setClientTable(snapshot.getClientTable());
+            checkpointManager.setLastStableCheckpoint(checkpointNum);
+            checkpointManager.setLowWaterMark(checkpointNum);
+        }
+
+        var lastSeqnum = wal.replay(snapshotSeqnum, (seqnum, block) -> {
+            var checkpoint = checkpointManager.getCheckpointForSeq(seqnum);
+            registerBlock(seqnum, block);
+            var replies = stateMachine.executeBatch(block);
+            checkpoint.addReplies(seqnum, replies);
+            var digest = DataUtils.getDigest(block);
+            clientTable.executed(seqnum, digest, block, replies);
+            checkpoint.addExecutedSequence(seqnum, digest);
+            if ((seqnum + 1) % checkpointSize == 0) {
+                checkpoint.setServiceState(stateMachine.snapshot(), stateMachine.digest());
+                checkpoint.setClientTable(clientTable.snapshot());
+            }
+        });
+
+        lastExecutedSequenceNum = lastSeqnum;
+        nextSequence = lastSeqnum + 1;
+        loggedSequenceNum = lastSeqnum;
+
+        // protocols chosen for the replayed episodes are not logged, resume with the default one
+        var episode = getEpisodeNum(nextSequence);
+        if (episode > currentEpisodeNum.get()) {
+            reportSequence += (long) (episode - currentEpisodeNum.get()) * EPISODE_SIZE;
+            exchangeSequence += (long) (episode - currentEpisodeNum.get()) * EPISODE_SIZE;
+            currentEpisodeNum.set(episode);
+
+            var checkpoint = checkpointManager.getCheckpointForSeq(nextSequence);
+            checkpoint.setProtocol(coordinator.defaultProtocol);
+            checkpoint.beginTimestamp = System.nanoTime();
+            rolePlugin.episodeLeaderMode.put(episode, RolePlugin.parseLeaderMode(Config.string("protocol.general.leader")));
+        }
+
+        recoveryReport = "snapshot-sequence: " + snapshotSeqnum + ", replayed: " + (lastSeqnum - snapshotSeqnum)
+                + ", time: " + Printer.timeFormat(System.nanoTime() - begin, true);
+        System.out.println(prefix + "Recovered, " + recoveryReport);
     }
 
     public boolean transition(long seqnum, Transition transition) {
@@ -788,6 +1017,7 @@ public abstract class Entity {
         checkpoint.setState(seqnum, transition.toState);
         if (transition.updateMode == UpdateMode.VIEW) {
             pendingRequests.clear();
+            batching.pendingCleared();
             currentViewNum += 1;
         }
 
@@ -799,6 +1029,18 @@ public abstract class Entity {
 
             if (role == StateMachine.CLIENT) {
                 var targets = List.copyOf(requestBlock.stream().map(r -> r.getClient()).collect(Collectors.toSet()));
+                if (requestBlock.isEmpty()) {
+                    // empty slot of a parallel leader, every client has to pass the sequence
+                    targets = rolePlugin.getRoleEntities(seqnum, currentViewNum, phase, role);
+                }
+                if (messageType == StateMachine.REPLY && !requestBlock.isEmpty()) {
+                    // every client only gets the payloads of its own requests
+                    var reply = buildMessage(seqnum, currentViewNum, null, messageType, id, targets);
+                    for (var message : DataUtils.splitReply(reply)) {
+                        messages.add(processMessage(message));
+                    }
+                    continue;
+                }
                 var message = createMessage(seqnum, currentViewNum, null, messageType, id, targets);
                 messages.add(message);
             } else {
@@ -928,6 +1170,14 @@ public abstract class Entity {
 
     public MessageData createMessage(Long seqnum, long viewNum, List<RequestData> block, int type, int source,
             List<Integer> targets) {
+        return processMessage(buildMessage(seqnum, viewNum, block, type, source, targets));
+    }
+
+    /**
+     * Same as createMessage, without running the outgoing message plugins
+     */
+    protected MessageData buildMessage(Long seqnum, long viewNum, List<RequestData> block, int type, int source,
+            List<Integer> targets) {
 
         ByteString digest = null;
         Map<Long, Integer> replies = null;
@@ -978,18 +1228,37 @@ public abstract class Entity {
             // System.out.println("createMessage: attach nextProtocol = " + protocol + " to REPLY message");  
         }
 
-        return processMessage(message);
+        return message;
     }
 
     public MessageData processMessage(MessageData message) {
+        var deferred = pipelinePlugin.authenticatesOnSend();
         for (var i = 0; i < messagePlugins.size(); i++) {
             var plugin = messagePlugins.get(i);
+            if (deferred && plugin.isAuthenticator()) {
+                continue;
+            }
             message = plugin.processOutgoingMessage(message);
         }
 
         return message;
     }
 
+    /**
+     * Run only the authenticating outgoing plugins, invoked by a pipeline that
+     * authenticates messages when it sends them
+     */
+    public MessageData authenticate(MessageData message) {
+        for (var i = 0; i < messagePlugins.size(); i++) {
+            var plugin = messagePlugins.get(i);
+            if (plugin.isAuthenticator()) {
+                message = plugin.processOutgoingMessage(message);
+            }
+        }
+
+        return message;
+    }
+
     protected boolean checkMessageTally(long seqnum, QuorumId quorumId, UpdateMode updateMode) {
         var checkpoint = checkpointManager.getCheckpointForSeq(seqnum);
         var tally = checkpoint.getMessageTally();
@@ -1044,6 +1313,12 @@ public abstract class Entity {
         }
     }
 
+    public void releaseRequests(List<Long> reqnums) {
+        for (var reqnum : reqnums) {
+            reqnumToSeqnumMap.remove(reqnum);
+        }
+    }
+
     public Long getRequestSequence(long reqnum) {
         return reqnumToSeqnumMap.get(reqnum);
     }
@@ -1057,6 +1332,9 @@ public abstract class Entity {
     public void stop() {
         running = false;
         threads.forEach(thread -> thread.interrupt());
+        if (wal != null) {
+            wal.close();
+        }
     }
 
     public void registerThread(Thread thread) {
@@ -1081,6 +1359,17 @@ public abstract class Entity {
                 "avg: " + Printer.timeFormat(messageAvg, true) + ", max: " + Printer.timeFormat(messageMax, true) + ", count: "
                         + messageCount);
 
+        if (wal != null) {
+            report.put("wal", wal.getReport());
+        }
+        report.put("batching", batching.getReport());
+        report.put("pipeline-window", pipelineWindow.getReport());
+        report.put("mempool", pendingRequests.getReport());
+        report.put("client-table", clientTable.getReport() + ", reqnum-map: " + reqnumToSeqnumMap.size());
+        if (recoveryReport != null) {
+            report.put("recovery", recoveryReport);
+        }
+
         var blockMax = benchmark.max(BenchmarkManager.BLOCK_EXECUTE);
         var blockAvg = benchmark.average(BenchmarkManager.BLOCK_EXECUTE);
         var blockCount = benchmark.count(BenchmarkManager.BLOCK_EXECUTE);
@@ -1097,6 +1386,8 @@ public abstract class Entity {
         // report.put("condition-met", "count: " + benchmark.count(BenchmarkManager.CONDITION_MET));
         // report.put("transition", "count: " + benchmark.count(BenchmarkManager.TRANSITION));
         report.put("last-executed-sequence", "num: " + lastExecutedSequenceNum);
+        report.put("retained-state", "bytes: " + checkpointManager.getRetainedBytes() + ", sequences: "
+                + (lastExecutedSequenceNum - checkpointManager.getReleasedSequenceNum()));
         report.put("in-dark", "value: " + indarkFault.getApply());
 
         var timeoutCount = benchmark.count(BenchmarkManager.TIMEOUT);
@@ -1122,6 +1413,13 @@ public abstract class Entity {
         return id;
     }
 
+    /**
+     * @return true if another block can be proposed right away
+     */
+    public boolean hasPendingBlock() {
+        return pendingRequests.size() >= batching.getTargetSize();
+    }
+
     public boolean isRunning() {
         return running;
     }
@@ -1134,6 +1432,26 @@ public abstract class Entity {
         return nextSequence;
     }
 
+    /**
+     * @return sequence to propose the pending requests at, the next own slot of a parallel
+     *         leader that has not been proposed yet, nextSequence otherwise
+     */
+    public long getProposalSequence() {
+        var seqnum = nextSequence;
+        if (!rolePlugin.isParallel(seqnum)) {
+            return seqnum;
+        }
+
+        var from = Math.max(seqnum, proposedSequence + 1);
+        var limit = Math.min(lastExecutedSequenceNum + pipelineWindow.get(), from + rolePlugin.parallelLeaders - 1);
+        for (var next = from; next <= limit; next++) {
+            if (isPrimary(next)) {
+                return next;
+            }
+        }
+        return seqnum;
+    }
+
     public long getCurrentViewNum() {
         return currentViewNum;
     }
@@ -1150,6 +1468,18 @@ public abstract class Entity {
         return checkpointManager;
     }
 
+    public ReplicatedStateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
+    public SnapshotStore getSnapshotStore() {
+        return snapshots;
+    }
+
     public RolePlugin getRolePlugin() {
         return rolePlugin;
     }
@@ -0,0 +1,72 @@
+package com.gbft.framework.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import com.gbft.framework.data.RequestData;
+
+/**
+ * Executes a request block with non-conflicting requests running in parallel.
+ *
+ * Every request touches exactly one record, so the conflict graph of a block
+ * breaks down into one component per record. Components run in parallel on a
+ * fork-join pool, requests inside a component are coalesced into one update
+ * in block order, hence every replica computes the same replies regardless
+ * of scheduling.
+ */
+public class ExecutionScheduler {
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism number of execution threads, <= 1 executes sequentially
+     */
+    public ExecutionScheduler(int parallelism) {
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Execute a block against the dataset
+     * @param dataset service state
+     * @param requestBlock requests in sequence order
+     * @return reqnum -> reply value
+     */
+    public Map<Long, Integer> execute(Dataset dataset, List<RequestData> requestBlock) {
+        var values = new int[requestBlock.size()];
+
+        var components = getConflictComponents(requestBlock);
+        if (pool == null || components.size() <= 1) {
+            for (var component : components) {
+                dataset.executeCoalesced(requestBlock, component, values);
+            }
+        } else {
+            pool.submit(() -> components.parallelStream().forEach(
+                    component -> dataset.executeCoalesced(requestBlock, component, values))).join();
+        }
+
+        var replies = new HashMap<Long, Integer>();
+        for (var i = 0; i < requestBlock.size(); i++) {
+            replies.put(requestBlock.get(i).getRequestNum(), values[i]);
+        }
+
+        return replies;
+    }
+
+    /**
+     * Group requests touching the same record
+     * @param requestBlock requests in sequence order
+     * @return list of components, each holding request indexes in block order
+     */
+    public static List<List<Integer>> getConflictComponents(List<RequestData> requestBlock) {
+        var components = new LinkedHashMap<Integer, List<Integer>>();
+        for (var i = 0; i < requestBlock.size(); i++) {
+            components.computeIfAbsent(requestBlock.get(i).getRecord(), r -> new ArrayList<>()).add(i);
+        }
+
+        return new ArrayList<>(components.values());
+    }
+}
@@ -14,6 +14,8 @@ import com.gbft.framework.statemachine.StateMachine;
 import com.gbft.framework.utils.AdvanceConfig;
 import com.gbft.framework.utils.DataUtils;
 import com.gbft.framework.utils.FeatureManager;
+import com.gbft.framework.utils.SnapshotStore;
+import com.gbft.framework.utils.WriteAheadLog;
 import com.gbft.plugin.message.CheckpointMessagePlugin;
 import com.gbft.plugin.message.LearningMessagePlugin;
 
@@ -21,6 +23,10 @@ public class Node extends Entity {
 
     public Node(int id, CoordinatorUnit coordinator) {
         super(id, coordinator);
+
+        wal = WriteAheadLog.open(id);
+        snapshots = SnapshotStore.open(id);
+        recover();
     }
 
     @Override
@@ -29,17 +35,22 @@ public class Node extends Entity {
         var requestBlock = checkpoint.getRequestBlock(seqnum);
 
         if (checkpoint.getReplies(seqnum) == null) {
-            var replies = new HashMap<Long, Integer>();
-            for (var request : requestBlock) {
-                replies.put(request.getRequestNum(), dataset.execute(request));
-            }
+            var replies = stateMachine.executeBatch(requestBlock);
             checkpoint.addReplies(seqnum, replies);
+
+            var digest = checkpoint.getMessageTally().getQuorumDigest(seqnum, currentViewNum);
+            if (digest == null) {
+                digest = DataUtils.getDigest(requestBlock);
+            }
+            clientTable.executed(seqnum, digest, requestBlock, replies);
+            checkpoint.addExecutedSequence(seqnum, digest);
         }
 
         // checkpoint
         if ((seqnum + 1) % checkpointSize == 0) {
-            // copy the current state to checkpoint, new requests can commit but not execute.
-            checkpoint.setServiceState(dataset);
+            // snapshot the current state to checkpoint, new requests can commit but not execute.
+            checkpoint.setServiceState(stateMachine.snapshot(), stateMachine.digest());
+            checkpoint.setClientTable(clientTable.snapshot());
 
             // update h
             for (var i = messagePlugins.size() - 1; i >= 0; i--) {
@@ -48,6 +59,7 @@ public class Node extends Entity {
                     CheckpointMessagePlugin checkpointPlugin = (CheckpointMessagePlugin) plugin;
                     if (checkpointPlugin.hasQuorum(seqnum / checkpointSize)) {
                         checkpointManager.setLowWaterMark(seqnum / checkpointSize);
+                        checkpointManager.saveCheckpoint(seqnum / checkpointSize);
                     }
                 }
             }
@@ -0,0 +1,56 @@
+package com.gbft.framework.core;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentScope;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Records kept in native memory outside of the java heap, meant for very large
+ * `workload.dataset-size`. Segments are freed once the store becomes unreachable.
+ */
+public class OffHeapRecordStore implements RecordStore {
+
+    private static final VarHandle RECORD = MethodHandles.memorySegmentViewVarHandle(ValueLayout.JAVA_INT);
+
+    private final int size;
+    private final MemorySegment segment;
+
+    public OffHeapRecordStore(int size, int defaultValue) {
+        this.size = size;
+        segment = allocate(size);
+        for (var i = 0; i < size; i++) {
+            segment.setAtIndex(ValueLayout.JAVA_INT, i, defaultValue);
+        }
+    }
+
+    private static MemorySegment allocate(int size) {
+        return MemorySegment.allocateNative(size * ValueLayout.JAVA_INT.byteSize(),
+                ValueLayout.JAVA_INT.byteAlignment(), SegmentScope.auto());
+    }
+
+    private static long offset(int record) {
+        return record * ValueLayout.JAVA_INT.byteSize();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int record) {
+        return (int) RECORD.getVolatile(segment, offset(record));
+    }
+
+    @Override
+    public void set(int record, int value) {
+        RECORD.setVolatile(segment, offset(record), value);
+    }
+
+    @Override
+    public int addAndGet(int record, int delta) {
+        return (int) RECORD.getAndAdd(segment, offset(record), delta) + delta;
+    }
+}
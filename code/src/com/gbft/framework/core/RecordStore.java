@@ -0,0 +1,15 @@
+package com.gbft.framework.core;
+
+/**
+ * Contiguous storage of the integer records of a Dataset, indexed by record number.
+ */
+public interface RecordStore {
+
+    public int size();
+
+    public int get(int record);
+
+    public void set(int record, int value);
+
+    public int addAndGet(int record, int delta);
+}
@@ -0,0 +1,67 @@
+package com.gbft.framework.core;
+
+import java.util.List;
+import java.util.Map;
+
+import com.gbft.framework.data.RequestData;
+import com.gbft.framework.utils.StateDigest;
+import com.gbft.framework.utils.StateTree;
+import com.google.protobuf.ByteString;
+
+/**
+ * Application service replicated by the nodes.
+ *
+ * Implementations are registered with `PluginManager.registerStateMachine` and
+ * selected by `workload.state-machine`. Only the executor thread calls
+ * `executeBatch`, blocks arrive in sequence order. `query` is called from
+ * message handling threads while blocks execute.
+ */
+public interface ReplicatedStateMachine {
+
+    /**
+     * Execute a committed block
+     * @param requestBlock requests in sequence order
+     * @return reqnum -> reply value
+     */
+    public Map<Long, Integer> executeBatch(List<RequestData> requestBlock);
+
+    /**
+     * Answer read-only requests from the current state without ordering them.
+     * Must not modify the state, it may run concurrently with `executeBatch`.
+     * @return reqnum -> reply value
+     */
+    public Map<Long, Integer> query(List<RequestData> requests);
+
+    /**
+     * Capture the current service state, invoked at checkpoint boundaries.
+     * The snapshot must not change with later executions and must iterate in ascending key order.
+     * @return key -> value
+     */
+    public Map<Integer, Integer> snapshot();
+
+    /**
+     * Digest of the current service state, invoked right after `snapshot`.
+     * Must equal `StateDigest.of(snapshot())`, which is how fetched state is verified.
+     * Implementations should override this to maintain the digest incrementally.
+     * @return digest bytes
+     */
+    public default ByteString digest() {
+        return StateDigest.of(snapshot()).toByteString();
+    }
+
+    /**
+     * Merkle index of the live state over keys [0, size), lets state transfer skip
+     * subtrees that already match. Null disables partial transfer.
+     * @return live state tree, its root digest equals `digest()`
+     */
+    public default StateTree getStateTree() {
+        return null;
+    }
+
+    /**
+     * Replace the service state with a snapshot fetched from another node,
+     * or with the differing subtrees of one
+     * @param snapshot key -> value
+     */
+    public void restore(Map<Integer, Integer> snapshot);
+}
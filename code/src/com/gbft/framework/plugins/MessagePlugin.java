@@ -8,4 +8,12 @@ public interface MessagePlugin {
 
     public MessageData processOutgoingMessage(MessageData message);
 
+    /**
+     * @return true if the plugin authenticates outgoing messages, it is then left to
+     *         the pipeline if the pipeline authenticates messages when sending them
+     */
+    public default boolean isAuthenticator() {
+        return false;
+    }
+
 }
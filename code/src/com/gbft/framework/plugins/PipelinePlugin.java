@@ -7,4 +7,19 @@ public interface PipelinePlugin {
     public void sendMessage(MessageData message, int sender);
 
     public int getMaxActiveSequences();
+
+    /**
+     * @return false if the pipeline relies on exactly getMaxActiveSequences() sequences in flight
+     */
+    public default boolean isWindowAdjustable() {
+        return true;
+    }
+
+    /**
+     * @return true if the pipeline authenticates every message it sends with `Entity.authenticate`,
+     *         `Entity.processMessage` then skips the authenticating plugins
+     */
+    public default boolean authenticatesOnSend() {
+        return false;
+    }
 }
@@ -6,16 +6,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 
+import com.gbft.framework.core.Dataset;
 import com.gbft.framework.core.Entity;
+import com.gbft.framework.core.ReplicatedStateMachine;
 import com.gbft.framework.utils.Config;
 import com.gbft.framework.utils.Printer;
 import com.gbft.framework.utils.Printer.Verbosity;
 import com.gbft.plugin.message.CheckpointMessagePlugin;
 import com.gbft.plugin.message.DigestMessagePlugin;
+import com.gbft.plugin.message.ErasureMessagePlugin;
 import com.gbft.plugin.message.LearningMessagePlugin;
 import com.gbft.plugin.message.MacMessagePlugin;
+import com.gbft.plugin.message.PayloadMessagePlugin;
 import com.gbft.plugin.message.ReadOnlyMessagePlugin;
 import com.gbft.plugin.message.SpeculateMessagePlugin;
+import com.gbft.plugin.pipeline.BatchedPipelinePlugin;
 import com.gbft.plugin.pipeline.DirectPipelinePlugin;
 import com.gbft.plugin.pipeline.QcPipelinePlugin;
 import com.gbft.plugin.role.BasicPrimaryPlugin;
@@ -29,6 +34,7 @@ public class PluginManager {
     public static Map<String, Function<Entity, MessagePlugin>> messagePlugins = new HashMap<>();
     public static Map<String, Function<Entity, PipelinePlugin>> pipelinePlugins = new HashMap<>();
     public static Map<String, Function<Entity, TransitionPlugin>> transitionPlugins = new HashMap<>();
+    public static Map<String, Function<Entity, ReplicatedStateMachine>> stateMachines = new HashMap<>();
 
     public static void registerRolePlugin(String id, Function<Entity, RolePlugin> generator) {
         rolePlugins.put(id, generator);
@@ -108,6 +114,22 @@ public class PluginManager {
         return plugins;
     }
 
+    public static void registerStateMachine(String id, Function<Entity, ReplicatedStateMachine> generator) {
+        stateMachines.put(id, generator);
+    }
+
+    public static ReplicatedStateMachine getStateMachine(Entity entity) {
+        var name = Config.string("workload.state-machine");
+        if (name.isEmpty()) {
+            name = "dataset";
+        }
+        if (!stateMachines.containsKey(name)) {
+            Printer.print(Verbosity.V, "{plugin-manager} ", "State machine not found: " + name);
+            return null;
+        }
+        return stateMachines.get(name).apply(entity);
+    }
+
     public static void initDefaultPlugins() {
         PluginManager.registerRolePlugin("primary", (entity) -> new BasicPrimaryPlugin(entity));
         PluginManager.registerRolePlugin("passive", (entity) -> new PrimaryPassivePlugin(entity));
@@ -120,10 +142,15 @@ public class PluginManager {
         PluginManager.registerMessagePlugin("speculate", (entity) -> new SpeculateMessagePlugin(entity));
         PluginManager.registerMessagePlugin("read-only", (entity) -> new ReadOnlyMessagePlugin(entity));
         PluginManager.registerMessagePlugin("learning", (entity) -> new LearningMessagePlugin(entity));
+        PluginManager.registerMessagePlugin("payload", (entity) -> new PayloadMessagePlugin(entity));
+        PluginManager.registerMessagePlugin("erasure", (entity) -> new ErasureMessagePlugin(entity));
 
         PluginManager.registerTransitionPlugin("checkpoint", (entity) -> new CheckpointTransitionPlugin(entity));
 
         PluginManager.registerPipelinePlugin("direct", (entity) -> new DirectPipelinePlugin(entity));
         PluginManager.registerPipelinePlugin("qc-pipeline", (entity) -> new QcPipelinePlugin(entity));
+        PluginManager.registerPipelinePlugin("batched", (entity) -> new BatchedPipelinePlugin(entity));
+
+        PluginManager.registerStateMachine("dataset", (entity) -> new Dataset());
     }
 }
@@ -11,6 +11,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 import java.util.stream.IntStream;
 
 import com.gbft.framework.core.Entity;
+import com.gbft.framework.data.RequestData;
 import com.gbft.framework.statemachine.StateMachine;
 import com.gbft.framework.utils.Config;
 import com.gbft.framework.utils.EntityMapUtils;
@@ -22,8 +23,12 @@ public abstract class RolePlugin {
     // Leader Change
     public static final int STABLE = 0;
     public static final int ROTATE = 1;
+    // sequence s is led by leader s mod k, k leaders propose concurrently and
+    // the executor merges their blocks in sequence order
+    public static final int PARALLEL = 2;
 
     public long leaderChangeInterval;
+    public final int parallelLeaders;
     public Map<Integer, Integer> episodeLeaderMode;
     public ReadLock roleReadLock;
     public WriteLock roleWriteLock;
@@ -45,14 +50,57 @@ public abstract class RolePlugin {
                 candidateLeaders.add(node);
             }
         });
+
+        var leaders = Config.integer("benchmark.parallel-leaders");
+        parallelLeaders = leaders > 0 ? Math.min(leaders, candidateLeaders.size()) : candidateLeaders.size();
+    }
+
+    /**
+     * @param mode `protocol.general.leader`: stable | rotate | parallel
+     */
+    public static int parseLeaderMode(String mode) {
+        if (mode.equals("stable")) {
+            return STABLE;
+        } else if (mode.equals("parallel")) {
+            return PARALLEL;
+        }
+        return ROTATE;
+    }
+
+    public boolean isParallel(long sequenceNum) {
+        var leaderChange = episodeLeaderMode.get(this.entity.getEpisodeNum(sequenceNum));
+        return leaderChange != null && leaderChange == PARALLEL;
+    }
+
+    /**
+     * Sequence whose leader should receive the request. In parallel mode requests are
+     * hash-partitioned into one bucket per leader, the bucket of a request is fixed so
+     * that each request is proposed by a single leader.
+     * @param sequenceNum sequence the request is expected to be ordered around
+     */
+    public long getRequestSequence(long sequenceNum, RequestData request) {
+        if (!isParallel(sequenceNum)) {
+            return sequenceNum;
+        }
+
+        var hash = (request.getRequestNum() * 31 + request.getClient()) * 0x9E3779B97F4A7C15L;
+        var bucket = (int) Long.remainderUnsigned(hash >>> 16, parallelLeaders);
+        return sequenceNum - sequenceNum % parallelLeaders + bucket;
+    }
+
+    private int getLeaderOffset(long sequenceNum, long viewNum, int leaderChange) {
+        if (leaderChange == PARALLEL) {
+            return candidateLeaders.get((int) ((sequenceNum % parallelLeaders + viewNum) % candidateLeaders.size()));
+        }
+        return candidateLeaders.get((int) (sequenceNum / leaderChangeInterval + viewNum) % candidateLeaders.size());
     }
 
     public List<Integer> getRoleEntities(long sequenceNum, long viewNum, int phase, int role) {
         var leaderChange = episodeLeaderMode.get(this.entity.getEpisodeNum(sequenceNum));
         if (leaderChange == null) {
             System.out.println("Warning: Unknown leader mode for seqnum " + sequenceNum + ", assuming STABLE");
-        } else if (leaderChange == ROTATE) {
-            var offset = candidateLeaders.get((int) (sequenceNum / leaderChangeInterval + viewNum) % candidateLeaders.size());
+        } else if (leaderChange == ROTATE || leaderChange == PARALLEL) {
+            var offset = getLeaderOffset(sequenceNum, viewNum, leaderChange);
             return getRoleEntities(offset, phase, role);
         }
 
@@ -63,8 +111,8 @@ public abstract class RolePlugin {
         var leaderChange = episodeLeaderMode.get(this.entity.getEpisodeNum(sequenceNum));
         if (leaderChange == null) {
             System.out.println("Warning: Unknown leader mode for seqnum " + sequenceNum + ", assuming STABLE");
-        } else if (leaderChange == ROTATE) {
-            var offset = candidateLeaders.get((int) (sequenceNum / leaderChangeInterval + viewNum) % candidateLeaders.size());
+        } else if (leaderChange == ROTATE || leaderChange == PARALLEL) {
+            var offset = getLeaderOffset(sequenceNum, viewNum, leaderChange);
             return getEntityRoles(offset, phase, entity);
         }
 
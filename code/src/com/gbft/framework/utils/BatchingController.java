@@ -0,0 +1,254 @@
+package com.gbft.framework.utils;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.gbft.framework.core.Entity;
+
+/**
+ * Decides when the primary closes a request block and how large it is.
+ *
+ * A block is closed once the target size is pending, or once the oldest
+ * pending request has waited `benchmark.batch-max-wait-us`, then with whatever
+ * is pending. In adaptive mode the target size grows while a backlog of at
+ * least one more block remains after closing, and shrinks when blocks are
+ * closed under-filled by the deadline or the commit latency exceeds
+ * `benchmark.batch-target-latency-ms`.
+ *
+ * With parallel leaders each leader proposes its own slots ahead of the others
+ * within the pipeline window, but every sequence has to be proposed by its
+ * leader before later ones can execute. A leader without pending requests
+ * proposes an empty block once the others wait for its slot and the slot has
+ * been open for `benchmark.parallel-slot-wait-us`.
+ */
+public class BatchingController implements Runnable {
+
+    public static final String FIXED = "fixed";
+    public static final String ADAPTIVE = "adaptive";
+
+    private Entity entity;
+
+    private final boolean adaptive;
+    private final long maxWait;
+    private final long slotWait;
+    private final long targetLatency;
+    private final int minSize;
+    private final int maxSize;
+
+    private volatile int targetSize;
+
+    // arrival of the oldest pending request, 0 if nothing is pending
+    private final AtomicLong openSince;
+
+    // own sequence waiting for requests in parallel mode, -1 if none
+    private volatile long slotSeqnum;
+    private volatile long slotSince;
+    private Thread timer;
+    // set by getBlockSize when the deadline closes the block, guarded by the pending lock
+    private boolean deadlineDue;
+
+    // proposed seqnum -> proposal timestamp
+    private final ConcurrentSkipListMap<Long, Long> proposals;
+    private volatile long latency;
+
+    private final LongAdder blocks;
+    private final LongAdder requests;
+    private final LongAdder deadlineClosed;
+    private final LongAdder underFilledBlocks;
+    private final LongAdder emptySlots;
+    private final LongAdder increases;
+    private final LongAdder decreases;
+
+    public BatchingController(Entity entity, int blockSize) {
+        this.entity = entity;
+
+        adaptive = Config.string("benchmark.batching").equals(ADAPTIVE);
+        maxWait = Math.max(Config.integer("benchmark.batch-max-wait-us"), 0) * 1000L;
+        targetLatency = Math.max(Config.integer("benchmark.batch-target-latency-ms"), 0) * 1000000L;
+        var wait = Config.integer("benchmark.parallel-slot-wait-us");
+        slotWait = (wait > 0 ? wait : 1000) * 1000L;
+
+        var min = Config.integer("benchmark.batch-min-size");
+        var max = Config.integer("benchmark.batch-max-size");
+        minSize = adaptive ? (min > 0 ? Math.min(min, blockSize) : 1) : blockSize;
+        maxSize = adaptive ? (max > 0 ? Math.max(max, blockSize) : blockSize * 4) : blockSize;
+        targetSize = blockSize;
+
+        openSince = new AtomicLong(0);
+        slotSeqnum = -1;
+        proposals = new ConcurrentSkipListMap<>();
+        latency = 0;
+
+        blocks = new LongAdder();
+        requests = new LongAdder();
+        deadlineClosed = new LongAdder();
+        underFilledBlocks = new LongAdder();
+        emptySlots = new LongAdder();
+        increases = new LongAdder();
+        decreases = new LongAdder();
+
+        // clients never propose
+        if (!entity.isClient()) {
+            timer = new Thread(this);
+            entity.registerThread(timer);
+        }
+    }
+
+    /**
+     * Wake up the entity once the open block or slot is due, nothing else proposes at low load.
+     * Parks without a timeout while neither a block deadline nor a slot is open.
+     */
+    @Override
+    public void run() {
+        var tick = maxWait > 0 ? Math.min(maxWait, slotWait) : slotWait;
+        while (entity.isRunning()) {
+            var now = System.nanoTime();
+            var since = openSince.get();
+            var slotDue = slotSeqnum >= 0 && now - slotSince >= slotWait;
+            if (slotDue || (maxWait > 0 && since != 0 && now - since >= maxWait)) {
+                entity.stateUpdateLoop(entity.getProposalSequence());
+                // the block may not be proposable yet, e.g. the pipeline is full
+                LockSupport.parkNanos(tick / 2);
+                continue;
+            }
+
+            var next = Long.MAX_VALUE;
+            if (maxWait > 0 && since != 0) {
+                next = since + maxWait;
+            }
+            if (slotSeqnum >= 0) {
+                next = Math.min(next, slotSince + slotWait);
+            }
+            if (next == Long.MAX_VALUE) {
+                // unparked by requestQueued or isSlotDue
+                LockSupport.park();
+            } else {
+                LockSupport.parkNanos(next - now);
+            }
+        }
+    }
+
+    public void requestQueued() {
+        if (openSince.compareAndSet(0, System.nanoTime()) && maxWait > 0) {
+            LockSupport.unpark(timer);
+        }
+    }
+
+    /**
+     * Invoked when this entity leads seqnum in parallel mode but has nothing to propose
+     * @return true once the slot has waited long enough to be filled with an empty block
+     */
+    public boolean isSlotDue(long seqnum) {
+        var now = System.nanoTime();
+        if (slotSeqnum != seqnum) {
+            slotSince = now;
+            slotSeqnum = seqnum;
+            LockSupport.unpark(timer);
+            return false;
+        }
+        return now - slotSince >= slotWait;
+    }
+
+    public void pendingCleared() {
+        openSince.set(0);
+    }
+
+    /**
+     * @param pending number of pending requests
+     * @return number of requests to close a block with now, 0 to keep waiting
+     */
+    public int getBlockSize(int pending) {
+        deadlineDue = false;
+        var target = targetSize;
+        if (pending >= target) {
+            return target;
+        }
+
+        var since = openSince.get();
+        if (maxWait > 0 && pending > 0 && since != 0 && System.nanoTime() - since >= maxWait) {
+            deadlineDue = true;
+            return pending;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Invoked under the pending lock right after a block is taken from the pending requests
+     * @param size requests in the block
+     * @param remaining requests still pending
+     */
+    public void blockClosed(long seqnum, int size, int remaining) {
+        var now = System.nanoTime();
+        openSince.set(remaining > 0 ? now : 0);
+        proposals.put(seqnum, now);
+        if (slotSeqnum <= seqnum) {
+            slotSeqnum = -1;
+        }
+        var byDeadline = deadlineDue;
+        deadlineDue = false;
+
+        if (size == 0) {
+            emptySlots.increment();
+            return;
+        }
+
+        blocks.increment();
+        requests.add(size);
+
+        var target = targetSize;
+        var underFilled = size < target;
+        if (underFilled) {
+            underFilledBlocks.increment();
+        }
+        if (byDeadline) {
+            deadlineClosed.increment();
+        }
+
+        if (!adaptive) {
+            return;
+        }
+
+        if (targetLatency > 0 && latency > targetLatency) {
+            target = Math.max(minSize, target * 3 / 4);
+        } else if (remaining >= target) {
+            target = Math.min(maxSize, target + Math.max(1, target / 8));
+        } else if (underFilled && size < target / 2) {
+            target = Math.max(minSize, (target + size) / 2);
+        }
+
+        if (target > targetSize) {
+            increases.increment();
+        } else if (target < targetSize) {
+            decreases.increment();
+        }
+        targetSize = target;
+    }
+
+    /**
+     * Track the commit latency of blocks proposed by this entity
+     */
+    public void sequenceExecuted(long seqnum) {
+        var proposed = proposals.get(seqnum);
+        proposals.headMap(seqnum, true).clear();
+        if (proposed != null) {
+            var sample = System.nanoTime() - proposed;
+            latency = latency == 0 ? sample : latency + (sample - latency) / 8;
+        }
+    }
+
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    public String getReport() {
+        var blockCount = blocks.sum();
+        var avgBlock = blockCount == 0 ? 0.0 : (double) requests.sum() / blockCount;
+        return String.format("mode: %s, target: %d, avg-block: %.2f, blocks: %d, deadline-closed: %d, "
+                + "under-filled: %d, empty-slots: %d, increases: %d, decreases: %d, commit-latency: %s", adaptive ? ADAPTIVE : FIXED,
+                targetSize, avgBlock, blockCount, deadlineClosed.sum(), underFilledBlocks.sum(), emptySlots.sum(), increases.sum(),
+                decreases.sum(), Printer.timeFormat(latency, true));
+    }
+}
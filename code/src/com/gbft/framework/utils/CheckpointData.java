@@ -1,6 +1,6 @@
 package com.gbft.framework.utils;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
@@ -11,13 +11,13 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.ConcurrentSkipListSet;
 
-import com.gbft.framework.core.Dataset;
 import com.gbft.framework.core.Entity;
 import com.gbft.framework.data.MessageData;
 import com.gbft.framework.data.RequestData;
 import com.gbft.framework.statemachine.StateMachine;
 import com.gbft.framework.utils.Printer;
 import com.gbft.framework.utils.Printer.Verbosity;
+import com.google.protobuf.ByteString;
 
 public class CheckpointData {
     private long num;
@@ -27,12 +27,17 @@ public class CheckpointData {
     private Map<Long, Integer> stateMap;
     private Map<Long, RequestData> requests;
     private Map<Long, List<RequestData>> requestBlocks;
+    // seqnum -> request numbers of a request block released before the sequence is stable
+    private Map<Long, List<Long>> releasedBlocks;
     private Map<Long, NavigableSet<Long>> aggregationValues;
     private MessageTally messageTally;
     private MessageTally viewTally;
     
-    // service state
-    protected Dataset serviceState;
+    // service state snapshot, record -> value
+    protected Map<Integer, Integer> serviceState;
+    protected ByteString serviceDigest;
+    // client table snapshot taken with the service state
+    protected ByteString clientTable;
 
     // counter for next(i)
     protected Map<String, LongAdder> decisionMatching;
@@ -47,45 +52,72 @@ public class CheckpointData {
 
     protected Map<Long, Map<Long, Integer>> replies;
 
-    public CheckpointData(long num, Entity entity) {
+    // approximate bytes held by the request blocks of this checkpoint
+    private LongAdder retainedBytes;
+    // same for all checkpoints, shared with CheckpointManager
+    private LongAdder totalRetainedBytes;
+
+    // set digest of (seqnum, decided digest) over the executed sequences
+    private StateDigest sequenceDigest;
+
+    public CheckpointData(long num, Entity entity, LongAdder totalRetainedBytes) {
         this.num = num;
         this.entity = entity;
         stateMap = new ConcurrentHashMap<>();
         requests = new ConcurrentHashMap<>();
         requestBlocks = new ConcurrentHashMap<>();
+        releasedBlocks = new ConcurrentHashMap<>();
         aggregationValues = new ConcurrentHashMap<>();
         messageTally = new MessageTally();
         viewTally = new MessageTally();
         serviceState = null;
-        replies = new HashMap<>();
+        replies = new ConcurrentHashMap<>();
         decisionMatching = new ConcurrentHashMap<>();
+        retainedBytes = new LongAdder();
+        this.totalRetainedBytes = totalRetainedBytes;
+        sequenceDigest = new StateDigest();
     }
 
     /**
-     * Clone dataset, invoked in Node.java (Node, not Client)
+     * Store the service state snapshot, invoked in Node.java (Node, not Client)
      * Only invoke when (seqnum+1) % checkpointSize == 0
-     * @param currentServiceState current dataset
+     * @param snapshot result of `ReplicatedStateMachine.snapshot`
+     * @param digest result of `ReplicatedStateMachine.digest`, taken with the snapshot
      */
-    public void setServiceState(Dataset currentServiceState) {
-        this.serviceState = new Dataset(currentServiceState);
+    public void setServiceState(Map<Integer, Integer> snapshot, ByteString digest) {
+        this.serviceDigest = digest;
+        this.serviceState = snapshot;
+    }
+
+    public void setClientTable(ByteString snapshot) {
+        this.clientTable = snapshot;
+    }
+
+    public ByteString getClientTable() {
+        return clientTable;
     }
 
-    public Dataset getServiceState() {
+    public Map<Integer, Integer> getServiceState() {
         return serviceState;
     }
 
+    public ByteString getServiceDigest() {
+        return serviceDigest;
+    }
+
     public void tally(MessageData message) {
+        var seqnum = message.getSequenceNum();
+        var type = message.getMessageType();
+
         messageTally.tally(message);
-        viewTally.tally(message.toBuilder().clearDigest().build());
+        viewTally.tallyIgnoringDigest(seqnum, type, message.getViewNum(), message.getSource());
 
         // track number of received messages per slot
-        var seqnum = message.getSequenceNum();
         if (seqnum == entity.getBeginOfEpisode(seqnum)) {
             entity.getFeatureManager().count(entity.getEpisodeNum(seqnum), FeatureManager.RECEIVED_MESSAGE_PER_SLOT);
         }
 
         // timestamp when receiving leader proposal
-        var type = message.getMessageType();
         if (StateMachine.messages.get(type).hasRequestBlock && type != StateMachine.REQUEST && type != StateMachine.REPLY) {
             entity.getFeatureManager().received(entity.getEpisodeNum(seqnum), seqnum);
         }
@@ -141,10 +173,74 @@ public class CheckpointData {
 
     public void addRequestBlock(long seqnum, List<RequestData> requestBlock) {
         requestBlock.forEach(request -> requests.put(request.getRequestNum(), request));
-        requestBlocks.put(seqnum, requestBlock);
+        if (requestBlocks.put(seqnum, requestBlock) == null) {
+            var size = getBlockSize(requestBlock);
+            retainedBytes.add(size);
+            totalRetainedBytes.add(size);
+        }
         // stateMap.put(seqnum, StateMachine.IDLE);
     }
 
+    /**
+     * Release only the request block of an executed sequence that is not yet stable,
+     * its state and request numbers are kept until `releaseSequence`.
+     * Invoked by `CheckpointManager.releaseSequences`, only from the executor thread.
+     * @param seqnum sequence number
+     */
+    public void releaseRequestBlock(long seqnum) {
+        var requestBlock = requestBlocks.remove(seqnum);
+        if (requestBlock != null) {
+            var reqnums = new ArrayList<Long>(requestBlock.size());
+            for (var request : requestBlock) {
+                requests.remove(request.getRequestNum());
+                reqnums.add(request.getRequestNum());
+            }
+            releasedBlocks.put(seqnum, reqnums);
+            var size = getBlockSize(requestBlock);
+            retainedBytes.add(-size);
+            totalRetainedBytes.add(-size);
+        }
+    }
+
+    /**
+     * Release all per-sequence state of an executed sequence.
+     * Invoked by `CheckpointManager.releaseSequences`, only from the executor thread.
+     * @param seqnum sequence number
+     * @return request numbers of the released request block, null if there was none
+     */
+    public List<Long> releaseSequence(long seqnum) {
+        releaseRequestBlock(seqnum);
+        var reqnums = releasedBlocks.remove(seqnum);
+
+        replies.remove(seqnum);
+        aggregationValues.remove(seqnum);
+        stateMap.remove(seqnum);
+        messageTally.release(seqnum);
+        viewTally.release(seqnum);
+
+        return reqnums;
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.sum();
+    }
+
+    /**
+     * Discount the blocks still held from the shared total, invoked when the checkpoint is removed
+     */
+    public void releaseRetainedBytes() {
+        var size = retainedBytes.sumThenReset();
+        totalRetainedBytes.add(-size);
+    }
+
+    private static long getBlockSize(List<RequestData> requestBlock) {
+        var size = 0L;
+        for (var request : requestBlock) {
+            size += request.getSerializedSize();
+        }
+        return size;
+    }
+
     public RequestData getRequest(long reqnum) {
         return requests.get(reqnum);
     }
@@ -153,6 +249,21 @@ public class CheckpointData {
         return requestBlocks.get(seqnum);
     }
 
+    /**
+     * Invoked once per sequence when it is executed, including WAL replay
+     * @param digest decided digest of the sequence
+     */
+    public void addExecutedSequence(long seqnum, ByteString digest) {
+        sequenceDigest.add(seqnum, digest);
+    }
+
+    /**
+     * @return digest of the sequences executed in this checkpoint, sent in CHECKPOINT messages
+     */
+    public ByteString getSequenceDigest() {
+        return sequenceDigest.toByteString();
+    }
+
     public void addReplies(long seqnum, Map<Long, Integer> blockReplies) {
         replies.put(seqnum, blockReplies);
     }
@@ -1,14 +1,13 @@
 package com.gbft.framework.utils;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.gbft.framework.core.Entity;
 import com.gbft.framework.statemachine.StateMachine;
+import com.gbft.plugin.message.CheckpointMessagePlugin;
 import com.google.protobuf.ByteString;
 
 public class CheckpointManager {
@@ -21,6 +20,16 @@ public class CheckpointManager {
     private long lowWaterMark; // h
     public final int lowHighGap; // k
 
+    // every sequence up to this one has its per-sequence state released
+    private long releasedSequenceNum;
+    // every sequence up to this one has at least its request block released
+    private long trimmedSequenceNum;
+    private final long retainedBytesLimit;
+    // bytes held by the request blocks of all checkpoints, maintained by CheckpointData
+    private final LongAdder retainedBytes;
+    // plugins serving request blocks of executed sequences disable the limit
+    private volatile boolean keepRequestBlocks;
+
     public CheckpointManager(Entity entity) {
         this.entity = entity;
 
@@ -30,8 +39,15 @@ public class CheckpointManager {
         lastStableCheckpoint = -1;
         lowWaterMark = 0;
 
+        releasedSequenceNum = -1;
+        trimmedSequenceNum = -1;
+        var limitMb = Config.integer("benchmark.retained-state-limit-mb");
+        retainedBytesLimit = limitMb > 0 ? limitMb * 1024L * 1024L : -1L;
+        retainedBytes = new LongAdder();
+        keepRequestBlocks = false;
+
         checkpoints = new ConcurrentSkipListMap<>();
-        checkpoints.put(0L, new CheckpointData(0, this.entity));
+        checkpoints.put(0L, new CheckpointData(0, this.entity, retainedBytes));
     }
 
     /**
@@ -45,45 +61,23 @@ public class CheckpointManager {
         var targets = entity.getRolePlugin().getRoleEntities(0, 0, StateMachine.NORMAL_PHASE, StateMachine.NODE);
         var message = DataUtils.createMessage(checkpointNum, 0L, CHECKPOINT, entity.getId(), targets, List.of(),
                 entity.EMPTY_BLOCK, null, digest);
+        var clientTable = getCheckpoint(checkpointNum).getClientTable();
+        if (clientTable != null) {
+            message = message.toBuilder().putExtraData(CheckpointMessagePlugin.CLIENT_TABLE, clientTable).build();
+        }
         entity.sendMessage(message);       
     } 
 
     public ByteString getCheckpointDigest(long checkpointNum) {
-        var stream = new ByteArrayOutputStream();
-        try {
-            var checkpoint = getCheckpoint(checkpointNum);
-            for (var entry : checkpoint.serviceState.getRecords().entrySet()) {
-                stream.write(entry.getKey().byteValue());
-                stream.write(entry.getValue().byteValue());
-            }
-
-            stream.flush();
-            stream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return DataUtils.getDigest(stream.toByteArray());
+        return getCheckpoint(checkpointNum).getServiceDigest();
     }
 
+    /**
+     * Digest a fetched service state, comparable with `getCheckpointDigest(checkpointNum)`
+     * @param state record -> value, in any order
+     */
     public ByteString getCheckpointDigest(Map<Integer, Integer> state) {
-        var stream = new ByteArrayOutputStream();
-        Map<Integer, Integer> sorted_state = new TreeMap<>();
-        state.forEach((key, value) -> sorted_state.put(key, value));
-
-        try {
-            for (var entry : sorted_state.entrySet()) {
-                stream.write(entry.getKey().byteValue());
-                stream.write(entry.getValue().byteValue());
-            }
-
-            stream.flush();
-            stream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return DataUtils.getDigest(stream.toByteArray());
+        return StateDigest.of(state).toByteString();
     }
 
     public void setLastStableCheckpoint(long checkpointNum) {
@@ -102,6 +96,93 @@ public class CheckpointManager {
         return lowWaterMark;
     }
 
+    /**
+     * Write a stable checkpoint to the snapshot store in the background and drop the
+     * log it covers. No-op without durable storage or before the checkpoint is executed locally.
+     * @param checkpointNum stable checkpoint
+     */
+    public void saveCheckpoint(long checkpointNum) {
+        var snapshots = entity.getSnapshotStore();
+        var checkpoint = checkpoints.get(checkpointNum);
+        if (snapshots == null || checkpoint == null || checkpoint.getServiceState() == null) {
+            return;
+        }
+
+        var lastSequenceNum = (checkpointNum + 1) * checkpointSize - 1;
+        new Thread(() -> {
+            if (snapshots.save(checkpointNum, lastSequenceNum, checkpoint.getServiceState(),
+                    checkpoint.getServiceDigest(), checkpoint.getClientTable())) {
+                var wal = entity.getWriteAheadLog();
+                if (wal != null) {
+                    wal.truncate(lastSequenceNum);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Release per-sequence state of executed sequences covered by the last stable checkpoint.
+     * If the retained request blocks exceed `benchmark.retained-state-limit-mb`, the request
+     * blocks of executed sequences that are not yet stable are released as well, oldest first.
+     * Their state and request numbers are kept until the checkpoint is stable.
+     * The limit is ignored once a plugin asked to `keepRequestBlocks`.
+     * Only invoked from the executor thread.
+     * @param lastExecutedSequenceNum last executed sequence number
+     */
+    public void releaseSequences(long lastExecutedSequenceNum) {
+        var stableSequenceNum = (lastStableCheckpoint + 1) * checkpointSize - 1;
+        var next = Math.max(releasedSequenceNum + 1, getMinCheckpoint() * checkpointSize);
+
+        for (; next <= Math.min(lastExecutedSequenceNum, stableSequenceNum); next++) {
+            releaseSequence(next);
+        }
+
+        releasedSequenceNum = Math.min(next - 1, lastExecutedSequenceNum);
+
+        if (retainedBytesLimit > 0 && !keepRequestBlocks) {
+            next = Math.max(next, trimmedSequenceNum + 1);
+            for (; next <= lastExecutedSequenceNum && retainedBytes.sum() > retainedBytesLimit; next++) {
+                var checkpoint = checkpoints.get(getCheckpointNum(next));
+                if (checkpoint != null) {
+                    checkpoint.releaseRequestBlock(next);
+                }
+            }
+        }
+        trimmedSequenceNum = Math.max(trimmedSequenceNum, Math.min(next - 1, lastExecutedSequenceNum));
+    }
+
+    private void releaseSequence(long seqnum) {
+        var checkpoint = checkpoints.get(getCheckpointNum(seqnum));
+        if (checkpoint == null) {
+            return;
+        }
+
+        var reqnums = checkpoint.releaseSequence(seqnum);
+        if (reqnums != null) {
+            entity.releaseRequests(reqnums);
+        }
+        entity.getTimekeeper().release(seqnum);
+    }
+
+    public long getReleasedSequenceNum() {
+        return releasedSequenceNum;
+    }
+
+    /**
+     * Keep the request blocks of executed sequences until their checkpoint is stable,
+     * for plugins that still serve them to other nodes, e.g. payload fetches and speculative commits
+     */
+    public void keepRequestBlocks() {
+        if (retainedBytesLimit > 0 && !keepRequestBlocks) {
+            System.err.println("benchmark.retained-state-limit-mb is ignored, request blocks are served until stable");
+        }
+        keepRequestBlocks = true;
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.sum();
+    }
+
     public Long getMinCheckpoint() {
         return checkpoints.firstKey();
     }
@@ -111,11 +192,14 @@ public class CheckpointManager {
     }
 
     public CheckpointData getCheckpoint(long checkpointNum) {
-        return checkpoints.computeIfAbsent(checkpointNum, num -> new CheckpointData(num, this.entity));
+        return checkpoints.computeIfAbsent(checkpointNum, num -> new CheckpointData(num, this.entity, retainedBytes));
     }
 
     public void removeCheckpoint(long checkpointNum) {
-        checkpoints.remove(checkpointNum);
+        var checkpoint = checkpoints.remove(checkpointNum);
+        if (checkpoint != null) {
+            checkpoint.releaseRetainedBytes();
+        }
     }
 
     public long getCheckpointNum(long seqnum) {
@@ -0,0 +1,230 @@
+package com.gbft.framework.utils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.gbft.framework.data.RequestData;
+import com.google.protobuf.ByteString;
+
+/**
+ * Executed requests and the latest reply of every client.
+ *
+ * Request numbers of a client are consecutive, so executed requests are kept
+ * as a watermark below which everything is executed plus a bitmap of at most
+ * `benchmark.client-table-window` request numbers above it. Requests falling
+ * behind the window, e.g. read-only requests that are never ordered, are
+ * treated as executed, so the table stays bounded regardless of the run length.
+ *
+ * The table is snapshotted with every checkpoint, a node catching up by state
+ * transfer installs the snapshot together with the service state.
+ */
+public class ClientTable {
+
+    private final int window;
+    private final Map<Integer, ClientRecord> clients;
+    private final LongAdder duplicates;
+
+    public ClientTable() {
+        var size = Config.integer("benchmark.client-table-window");
+        window = size > 0 ? size : 65536;
+
+        clients = new ConcurrentHashMap<>();
+        duplicates = new LongAdder();
+    }
+
+    /**
+     * Record an executed block, only invoked from the executor thread
+     * @param digest digest of the block as sent in REPLY messages
+     * @param replies reqnum -> reply value
+     */
+    public void executed(long seqnum, ByteString digest, List<RequestData> block, Map<Long, Integer> replies) {
+        for (var request : block) {
+            var reqnum = request.getRequestNum();
+            var value = replies.get(reqnum);
+            var record = clients.computeIfAbsent(request.getClient(), client -> new ClientRecord());
+            record.executed(reqnum, seqnum, value == null ? 0 : value, digest);
+        }
+    }
+
+    /**
+     * @return true if the request was executed, its retransmission must not be ordered again
+     */
+    public boolean isExecuted(int client, long reqnum) {
+        var record = clients.get(client);
+        if (record != null && record.isExecuted(reqnum)) {
+            duplicates.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return cached reply if reqnum is the latest executed request of the client, null otherwise
+     */
+    public Reply getReply(int client, long reqnum) {
+        var record = clients.get(client);
+        return record == null ? null : record.getReply(reqnum);
+    }
+
+    /**
+     * Encode watermarks, bitmaps and latest replies ordered by client, only invoked from
+     * the executor thread so that it matches the snapshots of the other nodes
+     */
+    public ByteString snapshot() {
+        var records = new TreeMap<Integer, byte[]>();
+        var size = 0;
+        for (var entry : clients.entrySet()) {
+            var record = entry.getValue().encode();
+            records.put(entry.getKey(), record);
+            size += Integer.BYTES * 2 + record.length;
+        }
+
+        var buffer = ByteBuffer.allocate(size);
+        for (var entry : records.entrySet()) {
+            buffer.putInt(entry.getKey()).putInt(entry.getValue().length).put(entry.getValue());
+        }
+        return ByteString.copyFrom(buffer.array());
+    }
+
+    /**
+     * Replace the table with a snapshot, invoked with execution stopped
+     * @return false if the snapshot is malformed, the table is left unchanged
+     */
+    public boolean restore(ByteString snapshot) {
+        var restored = new HashMap<Integer, ClientRecord>();
+        var buffer = snapshot.asReadOnlyByteBuffer();
+        try {
+            while (buffer.hasRemaining()) {
+                var client = buffer.getInt();
+                var length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    return false;
+                }
+                var record = decodeRecord(buffer.slice(buffer.position(), length));
+                if (record == null || restored.put(client, record) != null) {
+                    return false;
+                }
+                buffer.position(buffer.position() + length);
+            }
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+
+        clients.clear();
+        clients.putAll(restored);
+        return true;
+    }
+
+    private ClientRecord decodeRecord(ByteBuffer buffer) {
+        var record = new ClientRecord();
+        record.watermark = buffer.getLong();
+        var bits = readBytes(buffer);
+        if (bits == null) {
+            return null;
+        }
+        record.above = BitSet.valueOf(bits);
+        if (record.above.length() > window) {
+            return null;
+        }
+
+        if (buffer.hasRemaining()) {
+            var reqnum = buffer.getLong();
+            var seqnum = buffer.getLong();
+            var value = buffer.getInt();
+            var digest = readBytes(buffer);
+            if (digest == null) {
+                return null;
+            }
+            record.reply = new Reply(reqnum, seqnum, value, ByteString.copyFrom(digest));
+        }
+        return buffer.hasRemaining() ? null : record;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        var length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public String getReport() {
+        return "clients: " + clients.size() + ", duplicates: " + duplicates.sum();
+    }
+
+    public static class Reply {
+        public final long reqnum;
+        public final long seqnum;
+        public final int value;
+        public final ByteString digest;
+
+        private Reply(long reqnum, long seqnum, int value, ByteString digest) {
+            this.reqnum = reqnum;
+            this.seqnum = seqnum;
+            this.value = value;
+            this.digest = digest;
+        }
+    }
+
+    private class ClientRecord {
+        // every reqnum <= watermark is executed, bit i stands for watermark + 1 + i
+        private long watermark = -1;
+        private BitSet above = new BitSet();
+        private Reply reply;
+
+        private synchronized void executed(long reqnum, long seqnum, int value, ByteString digest) {
+            if (reply == null || reqnum > reply.reqnum) {
+                reply = new Reply(reqnum, seqnum, value, digest);
+            }
+
+            if (reqnum <= watermark) {
+                return;
+            }
+
+            var offset = reqnum - watermark - 1;
+            if (offset >= window) {
+                // give up on requests that fell behind the window
+                var skip = offset - window + 1;
+                above = skip >= above.length() ? new BitSet() : above.get((int) skip, above.length());
+                watermark += skip;
+                offset -= skip;
+            }
+            above.set((int) offset);
+
+            var executed = above.nextClearBit(0);
+            if (executed > 0) {
+                above = above.get(executed, above.length());
+                watermark += executed;
+            }
+        }
+
+        private synchronized boolean isExecuted(long reqnum) {
+            return reqnum <= watermark || (reqnum - watermark - 1 < window && above.get((int) (reqnum - watermark - 1)));
+        }
+
+        private synchronized Reply getReply(long reqnum) {
+            return reply != null && reply.reqnum == reqnum ? reply : null;
+        }
+
+        private synchronized byte[] encode() {
+            var bits = above.toByteArray();
+            var digest = reply == null ? new byte[0] : reply.digest.toByteArray();
+            var buffer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES * 3 + Long.BYTES * 2 + bits.length + digest.length);
+            buffer.putLong(watermark).putInt(bits.length).put(bits);
+            if (reply != null) {
+                buffer.putLong(reply.reqnum).putLong(reply.seqnum).putInt(reply.value).putInt(digest.length).put(digest);
+            }
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -21,6 +22,7 @@ import com.gbft.framework.data.ReportData;
 import com.gbft.framework.data.RequestData;
 import com.gbft.framework.data.RequestData.Operation;
 import com.gbft.framework.data.UnitData;
+import com.gbft.framework.statemachine.StateMachine;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Timestamp;
 import com.google.protobuf.util.Timestamps;
@@ -36,6 +38,32 @@ public class DataUtils {
         return MessageData.newBuilder(message).addFlags(INVALID).build();
     }
 
+    /**
+     * @return true if the message should carry a request block but only names its requests in request_nums
+     */
+    public static boolean isDigestOnly(MessageData message) {
+        return message.getRequestsCount() == 0 && message.getRequestNumsCount() > 0
+                && StateMachine.messages.get(message.getMessageType()).hasRequestBlock;
+    }
+
+    /**
+     * Split a reply to several clients into one reply per client. Each reply keeps
+     * the whole block, so its digest still holds, but only the requests of its
+     * client keep their payload and get a reply payload in
+     * {@link com.gbft.framework.coordination.CoordinatorUnit#sendMessages}.
+     */
+    public static List<MessageData> splitReply(MessageData reply) {
+        var split = new ArrayList<MessageData>(reply.getTargetsCount());
+        for (var client : reply.getTargetsList()) {
+            var builder = reply.toBuilder().clearTargets().addTargets(client).clearRequests();
+            for (var request : reply.getRequestsList()) {
+                builder.addRequests(request.getClient() == client ? request : request.toBuilder().clearRequestDummy().build());
+            }
+            split.add(builder.build());
+        }
+        return split;
+    }
+
     public static UnitData createUnitData(int unit, int nodeCount, int clientCount) {
         return UnitData.newBuilder().setUnit(unit).setNodeCount(nodeCount).setClientCount(clientCount).build();
     }
@@ -161,19 +189,15 @@ public class DataUtils {
 
         var builder = RequestData.newBuilder();
 
-        try {
-            builder.setRequestNum(reqnum)
-                   .setClient(clientId)
-                   .setRecord(record)
-                   .setOperation(operation)
-                   .setValue(value)
-                   .setReplySize(replySize)
-                   .setRequestDummy(ByteString.readFrom(new RandomDataStream(requestSize)))
-                   .setComputeFactor(AdvanceConfig.integer("workload.compute-factor"))
-                   .setTimestamp(Timestamps.fromNanos(System.nanoTime()));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        builder.setRequestNum(reqnum)
+               .setClient(clientId)
+               .setRecord(record)
+               .setOperation(operation)
+               .setValue(value)
+               .setReplySize(replySize)
+               .setRequestDummy(Payloads.create(requestSize))
+               .setComputeFactor(AdvanceConfig.integer("workload.compute-factor"))
+               .setTimestamp(Timestamps.fromNanos(System.nanoTime()));
 
         return builder.build();
     }
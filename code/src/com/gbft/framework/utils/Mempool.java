@@ -0,0 +1,131 @@
+package com.gbft.framework.utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.gbft.framework.data.RequestData;
+
+/**
+ * Pending client requests waiting to be proposed.
+ *
+ * Any thread may `offer`, requests go to a lock-free inbox and are counted in
+ * an atomic size, so `size()` is O(1). The single consumer forming blocks
+ * moves the inbox into per-client queues and drains them round-robin, one
+ * request per client per turn, so a client flooding the replica only delays
+ * its own requests. A request already pending with the same (client, reqnum)
+ * is dropped.
+ */
+public class Mempool {
+
+    private final ConcurrentLinkedQueue<RequestData> inbox;
+    private final AtomicInteger size;
+
+    // client -> reqnums offered and not drained yet
+    private final Map<Integer, Set<Long>> pending;
+
+    // consumer side, guarded by this
+    private final Map<Integer, ArrayDeque<RequestData>> clientQueues;
+    private final ArrayDeque<Integer> activeClients;
+
+    private final LongAdder duplicates;
+
+    public Mempool() {
+        inbox = new ConcurrentLinkedQueue<>();
+        size = new AtomicInteger(0);
+        pending = new ConcurrentHashMap<>();
+
+        clientQueues = new HashMap<>();
+        activeClients = new ArrayDeque<>();
+
+        duplicates = new LongAdder();
+    }
+
+    /**
+     * @return false if the same request is already pending
+     */
+    public boolean offer(RequestData request) {
+        var reqnums = pending.computeIfAbsent(request.getClient(), client -> ConcurrentHashMap.newKeySet());
+        if (!reqnums.add(request.getRequestNum())) {
+            duplicates.increment();
+            return false;
+        }
+
+        inbox.offer(request);
+        // counted only once the request is visible to the consumer
+        size.incrementAndGet();
+        return true;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * Move up to max requests into the block, taking one request per client in turn
+     * @return number of requests drained
+     */
+    public synchronized int drainTo(List<RequestData> block, int max) {
+        RequestData request;
+        while ((request = inbox.poll()) != null) {
+            var queue = clientQueues.computeIfAbsent(request.getClient(), client -> new ArrayDeque<>());
+            if (queue.isEmpty()) {
+                activeClients.addLast(request.getClient());
+            }
+            queue.addLast(request);
+        }
+
+        var drained = 0;
+        while (drained < max && !activeClients.isEmpty()) {
+            var client = activeClients.pollFirst();
+            var queue = clientQueues.get(client);
+            request = queue.pollFirst();
+            if (!queue.isEmpty()) {
+                activeClients.addLast(client);
+            }
+
+            pending.get(client).remove(request.getRequestNum());
+            block.add(request);
+            drained += 1;
+        }
+
+        size.addAndGet(-drained);
+        return drained;
+    }
+
+    /**
+     * Drop every pending request, e.g. on view change
+     */
+    public synchronized void clear() {
+        var removed = 0;
+        RequestData request;
+        while ((request = inbox.poll()) != null) {
+            pending.get(request.getClient()).remove(request.getRequestNum());
+            removed += 1;
+        }
+        for (var queue : clientQueues.values()) {
+            for (var queued : queue) {
+                pending.get(queued.getClient()).remove(queued.getRequestNum());
+            }
+            removed += queue.size();
+            queue.clear();
+        }
+        activeClients.clear();
+
+        size.addAndGet(-removed);
+    }
+
+    public String getReport() {
+        return "pending: " + size.get() + ", clients: " + pending.size() + ", duplicates: " + duplicates.sum();
+    }
+}
@@ -62,7 +62,8 @@ public class MessageTally {
 
         counterWriteLock.lock();
 
-        if (StateMachine.messages.get(type).hasRequestBlock) {
+        // a digest-only proposal counts as a vote, its block comes from elsewhere
+        if (StateMachine.messages.get(type).hasRequestBlock && !DataUtils.isDigestOnly(message)) {
             candidateBlocks.put(digest, message.getRequestsList());
         }
 
@@ -79,6 +80,24 @@ public class MessageTally {
         counterWriteLock.unlock();
     }
 
+    /**
+     * Count a vote without distinguishing digests, all votes of the same
+     * (seqnum, type, view) share one bucket in the counter.
+     * Equivalent to tallying the message with its digest cleared, but without
+     * building a message copy.
+     */
+    public void tallyIgnoringDigest(long seqnum, int type, long viewnum, int source) {
+        counterWriteLock.lock();
+
+        counter.computeIfAbsent(seqnum, s -> new ConcurrentHashMap<>())
+               .computeIfAbsent(type, t -> new ConcurrentSkipListMap<>())
+               .computeIfAbsent(viewnum, v -> new ConcurrentHashMap<>())
+               .computeIfAbsent(ByteString.EMPTY, d -> ConcurrentHashMap.newKeySet())
+               .add(source);
+
+        counterWriteLock.unlock();
+    }
+
     public Long getMaxQuorum(long seqnum, QuorumId quorumId) {
         Long max = null;
         counterReadLock.lock();
@@ -216,6 +235,40 @@ public class MessageTally {
         return submap == null ? null : submap.lastKey();
     }
 
+    /**
+     * Drop the votes, candidate blocks and candidate replies of a sequence.
+     * Quorum digests are kept since checkpoint digests are computed from them.
+     * @param seqnum sequence number
+     */
+    public void release(long seqnum) {
+        counterWriteLock.lock();
+        quorumWriteLock.lock();
+
+        var subcounter = counter.remove(seqnum);
+        if (subcounter != null) {
+            for (var viewcounter : subcounter.values()) {
+                for (var digestcounter : viewcounter.values()) {
+                    for (var digest : digestcounter.keySet()) {
+                        candidateBlocks.remove(digest);
+                        candidateReplies.remove(digest);
+                    }
+                }
+            }
+        }
+
+        var digests = quorumDigests.get(seqnum);
+        if (digests != null) {
+            for (var digest : digests.values()) {
+                candidateBlocks.remove(digest);
+                candidateReplies.remove(digest);
+            }
+        }
+        quorumMessages.remove(seqnum);
+
+        quorumWriteLock.unlock();
+        counterWriteLock.unlock();
+    }
+
     public static class QuorumId {
         public int message;
         public int quorum;
@@ -0,0 +1,97 @@
+package com.gbft.framework.utils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gbft.framework.data.MessageData;
+import com.gbft.framework.statemachine.StateMachine;
+import com.google.protobuf.ByteString;
+
+/**
+ * Proposals of one type and view for several sequences packed into a single message.
+ *
+ * The packed message is the first proposal carrying the request blocks of all
+ * slots back to back, with (seqnum, digest, block size) of every slot stored
+ * under `MULTI_SLOT` in its extra data, which is covered by the MAC of the
+ * message. Each slot keeps its own digest and is expanded into a separate
+ * proposal before tallying, so the state machine still runs per sequence.
+ *
+ * Layout: [int count]([long seqnum][int digest length][digest][int block size])*
+ */
+public class MultiSlotProposal {
+
+    public static final int MULTI_SLOT = 1202;
+
+    /**
+     * @return true if the message is a plain proposal that can be packed with others
+     */
+    public static boolean isProposal(MessageData message) {
+        var info = StateMachine.messages.get(message.getMessageType());
+        return !StateMachine.specialMessages.contains(info.name) && info.hasRequestBlock
+                && message.getRequestNumsCount() == 0 && message.getReplyDataCount() == 0
+                && message.getAggregationValuesCount() == 0 && message.getExtraValuesCount() == 0
+                && message.getFlagsCount() == 0 && !message.hasFetch() && !message.hasReport() && !message.hasSwitch()
+                && message.getExtraDataCount() == 0;
+    }
+
+    public static boolean isMultiSlot(MessageData message) {
+        return message.containsExtraData(MULTI_SLOT);
+    }
+
+    /**
+     * Pack unauthenticated proposals sharing type, view, source and targets,
+     * the pipeline authenticates the result once when sending it
+     */
+    public static MessageData aggregate(List<MessageData> proposals) {
+        var size = Integer.BYTES;
+        for (var proposal : proposals) {
+            size += Long.BYTES + Integer.BYTES * 2 + proposal.getDigest().size();
+        }
+
+        var builder = proposals.get(0).toBuilder().clearRequests();
+        var buffer = ByteBuffer.allocate(size);
+        buffer.putInt(proposals.size());
+        for (var proposal : proposals) {
+            buffer.putLong(proposal.getSequenceNum()).putInt(proposal.getDigest().size());
+            proposal.getDigest().copyTo(buffer);
+            buffer.putInt(proposal.getRequestsCount());
+            builder.addAllRequests(proposal.getRequestsList());
+        }
+        buffer.flip();
+
+        return builder.putExtraData(MULTI_SLOT, ByteString.copyFrom(buffer)).build();
+    }
+
+    /**
+     * @return one proposal per packed slot, empty if the message is malformed
+     */
+    public static List<MessageData> expand(MessageData message) {
+        var buffer = message.getExtraDataOrThrow(MULTI_SLOT).asReadOnlyByteBuffer();
+        var requests = message.getRequestsList();
+        var base = message.toBuilder().removeExtraData(MULTI_SLOT).clearRequests();
+
+        var proposals = new ArrayList<MessageData>();
+        var offset = 0;
+        try {
+            var count = buffer.getInt();
+            for (var i = 0; i < count; i++) {
+                var seqnum = buffer.getLong();
+                var length = buffer.getInt();
+                var digest = ByteString.copyFrom(buffer.slice(buffer.position(), length));
+                buffer.position(buffer.position() + length);
+                var blockSize = buffer.getInt();
+
+                var block = requests.subList(offset, offset + blockSize);
+                offset += blockSize;
+                proposals.add(base.setSequenceNum(seqnum).setDigest(digest).clearRequests().addAllRequests(block).build());
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return List.of();
+        }
+
+        // every request belongs to exactly one slot
+        return offset == requests.size() ? proposals : List.of();
+    }
+}
@@ -0,0 +1,51 @@
+package com.gbft.framework.utils;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Synthetic request and reply payloads.
+ *
+ * Payloads are slices of one random arena filled in bulk on first use, so
+ * creating a payload neither generates nor copies bytes. The arena is never
+ * written after it is filled, and payloads are only filler that is left out
+ * of digests and MACs, so sharing bytes between payloads is fine.
+ */
+public class Payloads {
+
+    private static final int ARENA_SIZE = 1 << 22;
+
+    private static class Arena {
+        private static final ByteString BYTES;
+
+        static {
+            var bytes = new byte[ARENA_SIZE];
+            new SplittableRandom().nextBytes(bytes);
+            BYTES = UnsafeByteOperations.unsafeWrap(bytes);
+        }
+    }
+
+    /**
+     * @return size bytes of random data starting at a random offset of the arena,
+     *         longer payloads wrap around it
+     */
+    public static ByteString create(int size) {
+        if (size <= 0) {
+            return ByteString.EMPTY;
+        }
+
+        var arena = Arena.BYTES;
+        var offset = ThreadLocalRandom.current().nextInt(ARENA_SIZE);
+        var payload = ByteString.EMPTY;
+        while (size > 0) {
+            var length = Math.min(size, ARENA_SIZE - offset);
+            payload = payload.concat(arena.substring(offset, offset + length));
+            size -= length;
+            offset = 0;
+        }
+        return payload;
+    }
+}
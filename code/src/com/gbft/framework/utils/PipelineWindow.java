@@ -0,0 +1,123 @@
+package com.gbft.framework.utils;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Number of sequences the primary may have in flight beyond the last executed one.
+ *
+ * In adaptive mode the window follows AIMD on the commit latency of sequences:
+ * it grows by one sequence per window of executed sequences while the latency
+ * stays within `benchmark.pipeline-latency-tolerance` times the lowest latency
+ * seen recently, and shrinks by a quarter, at most once per window, when the
+ * latency exceeds it or more than half a window of committed sequences waits
+ * for execution. The lowest latency is re-measured every `MIN_LATENCY_PERIOD`
+ * samples, so it follows changes of the network or protocol.
+ */
+public class PipelineWindow {
+
+    public static final String FIXED = "fixed";
+    public static final String ADAPTIVE = "adaptive";
+
+    private static final int MIN_LATENCY_PERIOD = 1000;
+
+    private final boolean adaptive;
+    private final int minWindow;
+    private final int maxWindow;
+    private final double tolerance;
+
+    private volatile double window;
+
+    // seqnum -> start timestamp
+    private final ConcurrentSkipListMap<Long, Long> started;
+    private long minLatency;
+    private long periodMinLatency;
+    private int periodSamples;
+    private long latency;
+    private long nextDecrease;
+
+    private final LongAdder increases;
+    private final LongAdder decreases;
+
+    /**
+     * @param maxWindow upper bound given by the pipeline plugin
+     * @param adjustable false if the pipeline plugin depends on a fixed window
+     */
+    public PipelineWindow(int maxWindow, boolean adjustable) {
+        adaptive = adjustable && Config.string("benchmark.pipeline-window").equals(ADAPTIVE);
+
+        var min = Config.integer("benchmark.pipeline-min-window");
+        this.maxWindow = maxWindow;
+        minWindow = adaptive ? Math.max(1, Math.min(min, maxWindow)) : maxWindow;
+
+        var factor = Config.doubleNumber("benchmark.pipeline-latency-tolerance");
+        tolerance = factor > 1 ? factor : 2.0;
+
+        window = maxWindow;
+        started = new ConcurrentSkipListMap<>();
+        minLatency = Long.MAX_VALUE;
+        periodMinLatency = Long.MAX_VALUE;
+        nextDecrease = 0;
+
+        increases = new LongAdder();
+        decreases = new LongAdder();
+    }
+
+    public int get() {
+        return (int) window;
+    }
+
+    public void sequenceStarted(long seqnum, long timestamp) {
+        if (adaptive) {
+            started.putIfAbsent(seqnum, timestamp);
+        }
+    }
+
+    /**
+     * Only invoked from the executor thread
+     * @param backlog committed sequences waiting for execution
+     */
+    public void sequenceExecuted(long seqnum, int backlog) {
+        if (!adaptive) {
+            return;
+        }
+
+        var start = started.get(seqnum);
+        started.headMap(seqnum, true).clear();
+        if (start == null) {
+            return;
+        }
+
+        var sample = System.nanoTime() - start;
+        latency = latency == 0 ? sample : latency + (sample - latency) / 8;
+
+        periodMinLatency = Math.min(periodMinLatency, sample);
+        minLatency = Math.min(minLatency, sample);
+        if (++periodSamples >= MIN_LATENCY_PERIOD) {
+            minLatency = periodMinLatency;
+            periodMinLatency = Long.MAX_VALUE;
+            periodSamples = 0;
+        }
+
+        var current = window;
+        if (sample > minLatency * tolerance || backlog > current / 2) {
+            if (seqnum >= nextDecrease && current > minWindow) {
+                window = Math.max(minWindow, current * 3 / 4);
+                nextDecrease = seqnum + (long) current;
+                decreases.increment();
+            }
+        } else if (current < maxWindow) {
+            window = Math.min(maxWindow, current + 1.0 / current);
+            if ((int) window > (int) current) {
+                increases.increment();
+            }
+        }
+    }
+
+    public String getReport() {
+        return String.format("mode: %s, window: %d, min: %d, max: %d, increases: %d, decreases: %d, "
+                + "commit-latency: %s, min-latency: %s", adaptive ? ADAPTIVE : FIXED, get(), minWindow, maxWindow,
+                increases.sum(), decreases.sum(), Printer.timeFormat(latency, true),
+                Printer.timeFormat(minLatency == Long.MAX_VALUE ? 0 : minLatency, true));
+    }
+}
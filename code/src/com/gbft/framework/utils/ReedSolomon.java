@@ -0,0 +1,210 @@
+package com.gbft.framework.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8).
+ *
+ * Data is split into k data shards followed by n - k parity shards, and any k
+ * of the n shards reconstruct the data. The encoding matrix is the identity on
+ * top of a Cauchy matrix, every k x k submatrix of it is invertible.
+ */
+public class ReedSolomon {
+
+    private static final int POLYNOMIAL = 0x11d;
+
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        var x = 1;
+        for (var i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (var i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private final int dataShards;
+    private final int totalShards;
+    // totalShards x dataShards
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataShards, int totalShards) {
+        if (dataShards < 1 || totalShards < dataShards || totalShards > 256) {
+            throw new IllegalArgumentException("Invalid shard counts: " + dataShards + " of " + totalShards);
+        }
+
+        this.dataShards = dataShards;
+        this.totalShards = totalShards;
+
+        matrix = new byte[totalShards][dataShards];
+        for (var i = 0; i < dataShards; i++) {
+            matrix[i][i] = 1;
+        }
+        for (var i = dataShards; i < totalShards; i++) {
+            for (var j = 0; j < dataShards; j++) {
+                // x_i = i and y_j = j are distinct, so i ^ j is never 0
+                matrix[i][j] = inverse((byte) (i ^ j));
+            }
+        }
+    }
+
+    public int getTotalShards() {
+        return totalShards;
+    }
+
+    public int getShardSize(int length) {
+        return Math.max(1, (length + dataShards - 1) / dataShards);
+    }
+
+    /**
+     * @return totalShards shards of getShardSize(data.length) bytes
+     */
+    public byte[][] encode(byte[] data) {
+        var shardSize = getShardSize(data.length);
+        var shards = new byte[totalShards][shardSize];
+        for (var i = 0; i < dataShards; i++) {
+            var from = i * shardSize;
+            if (from < data.length) {
+                System.arraycopy(data, from, shards[i], 0, Math.min(shardSize, data.length - from));
+            }
+        }
+
+        for (var i = dataShards; i < totalShards; i++) {
+            for (var j = 0; j < dataShards; j++) {
+                multiplyAdd(matrix[i][j], shards[j], shards[i]);
+            }
+        }
+
+        return shards;
+    }
+
+    /**
+     * @param shards shard index -> shard, at least dataShards of them of equal size
+     * @param length length of the encoded data
+     * @return the encoded data, null if there are not enough shards
+     */
+    public byte[] decode(Map<Integer, byte[]> shards, int length) {
+        if (shards.size() < dataShards) {
+            return null;
+        }
+
+        var indexes = new int[dataShards];
+        var rows = new byte[dataShards][];
+        var count = 0;
+        for (var entry : shards.entrySet()) {
+            if (count == dataShards) {
+                break;
+            }
+            indexes[count] = entry.getKey();
+            rows[count] = entry.getValue();
+            count += 1;
+        }
+
+        var shardSize = rows[0].length;
+        var decoding = new byte[dataShards][];
+        for (var i = 0; i < dataShards; i++) {
+            decoding[i] = matrix[indexes[i]].clone();
+        }
+        decoding = invert(decoding);
+        if (decoding == null) {
+            return null;
+        }
+
+        var data = new byte[length];
+        var shard = new byte[shardSize];
+        for (var i = 0; i < dataShards; i++) {
+            var from = i * shardSize;
+            if (from >= length) {
+                break;
+            }
+
+            Arrays.fill(shard, (byte) 0);
+            for (var j = 0; j < dataShards; j++) {
+                multiplyAdd(decoding[i][j], rows[j], shard);
+            }
+            System.arraycopy(shard, 0, data, from, Math.min(shardSize, length - from));
+        }
+
+        return data;
+    }
+
+    private static byte multiply(byte a, byte b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a & 0xff] + LOG[b & 0xff]];
+    }
+
+    private static byte inverse(byte a) {
+        return EXP[255 - LOG[a & 0xff]];
+    }
+
+    // out ^= coefficient * in
+    private static void multiplyAdd(byte coefficient, byte[] in, byte[] out) {
+        if (coefficient == 0) {
+            return;
+        }
+        var log = LOG[coefficient & 0xff];
+        for (var i = 0; i < out.length; i++) {
+            var value = in[i] & 0xff;
+            if (value != 0) {
+                out[i] ^= EXP[log + LOG[value]];
+            }
+        }
+    }
+
+    /**
+     * Gauss-Jordan elimination
+     * @return the inverse of a square matrix, null if it is singular
+     */
+    private static byte[][] invert(byte[][] source) {
+        var size = source.length;
+        var work = new byte[size][size * 2];
+        for (var i = 0; i < size; i++) {
+            System.arraycopy(source[i], 0, work[i], 0, size);
+            work[i][size + i] = 1;
+        }
+
+        for (var column = 0; column < size; column++) {
+            var pivot = column;
+            while (pivot < size && work[pivot][column] == 0) {
+                pivot += 1;
+            }
+            if (pivot == size) {
+                return null;
+            }
+            var swap = work[pivot];
+            work[pivot] = work[column];
+            work[column] = swap;
+
+            var scale = inverse(work[column][column]);
+            for (var j = 0; j < size * 2; j++) {
+                work[column][j] = multiply(work[column][j], scale);
+            }
+
+            for (var i = 0; i < size; i++) {
+                if (i != column && work[i][column] != 0) {
+                    var factor = work[i][column];
+                    for (var j = 0; j < size * 2; j++) {
+                        work[i][j] ^= multiply(factor, work[column][j]);
+                    }
+                }
+            }
+        }
+
+        var result = new byte[size][size];
+        for (var i = 0; i < size; i++) {
+            System.arraycopy(work[i], size, result[i], 0, size);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,280 @@
+package com.gbft.framework.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Stable checkpoints of the service state as memory-mapped files.
+ *
+ * A snapshot stores the value of every record [0, count) and the client table
+ * of the checkpoint, so requests executed before it are still recognized after
+ * a restart. It is written to a temporary file that is renamed once forced to
+ * disk, so the latest `node-{id}-{checkpoint}.snap` is always complete. Loading maps the file and
+ * exposes it as a read-only map, records are paged in while they are restored.
+ *
+ * Layout: [int magic][long checkpointNum][long lastSequenceNum][int count][int tableSize][int crc32]
+ * [32 bytes digest][int value]*[client table] where crc32 covers the values and the client table.
+ */
+public class SnapshotStore {
+
+    private static final int MAGIC = 0x534e4151;
+    private static final int DIGEST_SIZE = 32;
+    private static final int HEADER_SIZE = Integer.BYTES * 4 + Long.BYTES * 2 + DIGEST_SIZE;
+
+    private final int id;
+    private final File directory;
+    private long savedCheckpoint;
+
+    private SnapshotStore(int id, File directory, boolean recover) {
+        this.id = id;
+        this.directory = directory;
+        savedCheckpoint = -1;
+
+        directory.mkdirs();
+        if (!recover) {
+            for (var file : listSnapshots()) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Snapshots are only taken alongside the write-ahead log, see `storage.durability`
+     * @param id node id
+     * @return null if durability is none
+     */
+    public static SnapshotStore open(int id) {
+        if (!WriteAheadLog.isEnabled()) {
+            return null;
+        }
+
+        return new SnapshotStore(id, WriteAheadLog.getDirectory(), Config.bool("storage.recover"));
+    }
+
+    /**
+     * Write a stable checkpoint and delete older snapshots, checkpoints not newer
+     * than the last saved one are ignored
+     * @param state record -> value for every record [0, count), in record order
+     * @param clientTable result of `ClientTable.snapshot` taken with the state, null if there is none
+     * @return true if the snapshot is on disk
+     */
+    public synchronized boolean save(long checkpointNum, long lastSequenceNum, Map<Integer, Integer> state,
+            ByteString digest, ByteString clientTable) {
+        if (checkpointNum <= savedCheckpoint || digest == null || digest.size() != DIGEST_SIZE) {
+            return false;
+        }
+
+        var file = getFile(checkpointNum);
+        var temp = new File(directory, file.getName() + ".tmp");
+        var count = state.size();
+        var table = clientTable == null ? ByteString.EMPTY : clientTable;
+        var bodySize = (long) count * Integer.BYTES + table.size();
+        try (var channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + bodySize);
+
+            var values = buffer.slice(HEADER_SIZE, count * Integer.BYTES).asIntBuffer();
+            var record = 0;
+            for (var entry : state.entrySet()) {
+                if (entry.getKey() != record) {
+                    System.err.println("Snapshot skipped, records are not dense at " + entry.getKey());
+                    temp.delete();
+                    return false;
+                }
+                values.put(entry.getValue());
+                record += 1;
+            }
+
+            buffer.put(HEADER_SIZE + count * Integer.BYTES, table.asReadOnlyByteBuffer(), 0, table.size());
+
+            var crc = new CRC32();
+            crc.update(buffer.slice(HEADER_SIZE, (int) bodySize));
+            buffer.putInt(MAGIC).putLong(checkpointNum).putLong(lastSequenceNum).putInt(count).putInt(table.size())
+                  .putInt((int) crc.getValue()).put(digest.asReadOnlyByteBuffer());
+            buffer.force();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        savedCheckpoint = checkpointNum;
+        for (var older : listSnapshots()) {
+            if (!older.equals(file)) {
+                older.delete();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Map the newest snapshot whose header and checksum are intact
+     * @return null if there is none
+     */
+    public Snapshot load() {
+        var files = listSnapshots();
+        Arrays.sort(files, Comparator.comparing(File::getName).reversed());
+
+        for (var file : files) {
+            try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() < HEADER_SIZE) {
+                    continue;
+                }
+
+                var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != MAGIC) {
+                    continue;
+                }
+                var checkpointNum = buffer.getLong();
+                var lastSequenceNum = buffer.getLong();
+                var count = buffer.getInt();
+                var tableSize = buffer.getInt();
+                var checksum = buffer.getInt();
+                var digest = ByteString.copyFrom(buffer.slice(buffer.position(), DIGEST_SIZE));
+                if (count < 0 || tableSize < 0
+                        || channel.size() != HEADER_SIZE + (long) count * Integer.BYTES + tableSize) {
+                    continue;
+                }
+
+                var crc = new CRC32();
+                crc.update(buffer.slice(HEADER_SIZE, count * Integer.BYTES + tableSize));
+                if ((int) crc.getValue() != checksum) {
+                    continue;
+                }
+
+                synchronized (this) {
+                    savedCheckpoint = Math.max(savedCheckpoint, checkpointNum);
+                }
+                var table = ByteString.copyFrom(buffer.slice(HEADER_SIZE + count * Integer.BYTES, tableSize));
+                return new Snapshot(checkpointNum, lastSequenceNum, digest, table, buffer.slice(HEADER_SIZE, count * Integer.BYTES));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return null;
+    }
+
+    private File getFile(long checkpointNum) {
+        return new File(directory, String.format("node-%d-%012d.snap", id, checkpointNum));
+    }
+
+    private File[] listSnapshots() {
+        var prefix = "node-" + id + "-";
+        var files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".snap"));
+        return files == null ? new File[0] : files;
+    }
+
+    public static class Snapshot {
+        private final long checkpointNum;
+        private final long lastSequenceNum;
+        private final ByteString digest;
+        private final ByteString clientTable;
+        private final IntBuffer values;
+
+        private Snapshot(long checkpointNum, long lastSequenceNum, ByteString digest, ByteString clientTable,
+                ByteBuffer values) {
+            this.checkpointNum = checkpointNum;
+            this.lastSequenceNum = lastSequenceNum;
+            this.digest = digest;
+            this.clientTable = clientTable;
+            this.values = values.asIntBuffer();
+        }
+
+        public long getCheckpointNum() {
+            return checkpointNum;
+        }
+
+        public long getLastSequenceNum() {
+            return lastSequenceNum;
+        }
+
+        public ByteString getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return client table snapshot taken with the state, to `ClientTable.restore`
+         */
+        public ByteString getClientTable() {
+            return clientTable;
+        }
+
+        /**
+         * @return record -> value in record order, backed by the mapped file
+         */
+        public Map<Integer, Integer> getState() {
+            return new AbstractMap<Integer, Integer>() {
+                @Override
+                public int size() {
+                    return values.capacity();
+                }
+
+                @Override
+                public Integer get(Object key) {
+                    if (!(key instanceof Integer) || (Integer) key < 0 || (Integer) key >= values.capacity()) {
+                        return null;
+                    }
+                    return values.get((Integer) key);
+                }
+
+                @Override
+                public Set<Map.Entry<Integer, Integer>> entrySet() {
+                    return new AbstractSet<Map.Entry<Integer, Integer>>() {
+                        @Override
+                        public int size() {
+                            return values.capacity();
+                        }
+
+                        @Override
+                        public Iterator<Map.Entry<Integer, Integer>> iterator() {
+                            return new Iterator<Map.Entry<Integer, Integer>>() {
+                                private int record = 0;
+
+                                @Override
+                                public boolean hasNext() {
+                                    return record < values.capacity();
+                                }
+
+                                @Override
+                                public Map.Entry<Integer, Integer> next() {
+                                    if (!hasNext()) {
+                                        throw new NoSuchElementException();
+                                    }
+                                    var entry = Map.entry(record, values.get(record));
+                                    record += 1;
+                                    return entry;
+                                }
+                            };
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
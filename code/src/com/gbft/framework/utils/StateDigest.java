@@ -0,0 +1,173 @@
+package com.gbft.framework.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Set-homomorphic digest of a key -> value state (LtHash).
+ *
+ * Each entry is hashed into 1024 16-bit lanes and the state digest is the
+ * lane-wise sum modulo 2^16 over all entries, so changing one entry costs two
+ * element hashes regardless of the state size. These are the LtHash16
+ * parameters (2048-byte accumulator) for which finding colliding multisets
+ * reduces to a lattice problem with about 200 bits of security, smaller
+ * accumulators make collisions, and thus forged fetched state, feasible.
+ *
+ * Four lanes are packed into every long, `add` and `subtract` work lane-wise
+ * so callers keep summing long arrays. Longs are updated atomically and
+ * addition commutes, hence concurrent updates to different keys are safe.
+ */
+public class StateDigest {
+
+    // 256 longs * 4 lanes * 16 bits = 2048 byte accumulator, longs are what callers index
+    public static final int LANES = 256;
+    // top bit of every packed 16-bit lane
+    private static final long HIGH_BITS = 0x8000800080008000L;
+    private static final byte[] ZERO_IV = new byte[16];
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // element hashes are expanded from their SHA-256 with AES-256 in counter mode
+    private static final ThreadLocal<Cipher> aesCtr = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final AtomicLongArray lanes;
+
+    public StateDigest() {
+        lanes = new AtomicLongArray(LANES);
+    }
+
+    /**
+     * Digest a complete state, used to verify fetched state
+     * @param state key -> value, in any order
+     */
+    public static StateDigest of(Map<Integer, Integer> state) {
+        var digest = new StateDigest();
+        state.forEach((key, value) -> digest.add(key, value));
+        return digest;
+    }
+
+    public void add(int key, int value) {
+        var hash = hash(key, value);
+        for (var i = 0; i < LANES; i++) {
+            lanes.getAndAccumulate(i, hash[i], StateDigest::add);
+        }
+    }
+
+    /**
+     * Add an entry with an opaque value, e.g. seqnum -> block digest
+     */
+    public void add(long key, ByteString value) {
+        var element = ByteBuffer.allocate(Long.BYTES + value.size());
+        element.putLong(key).put(value.asReadOnlyByteBuffer());
+        var hash = hash(element.array());
+        for (var i = 0; i < LANES; i++) {
+            lanes.getAndAccumulate(i, hash[i], StateDigest::add);
+        }
+    }
+
+    public void remove(int key, int value) {
+        var hash = hash(key, value);
+        for (var i = 0; i < LANES; i++) {
+            lanes.getAndAccumulate(i, hash[i], StateDigest::subtract);
+        }
+    }
+
+    public void update(int key, int oldValue, int newValue) {
+        if (oldValue == newValue) {
+            return;
+        }
+
+        var oldHash = hash(key, oldValue);
+        var newHash = hash(key, newValue);
+        for (var i = 0; i < LANES; i++) {
+            lanes.getAndAccumulate(i, subtract(newHash[i], oldHash[i]), StateDigest::add);
+        }
+    }
+
+    /**
+     * @return SHA-256 of the accumulator
+     */
+    public ByteString toByteString() {
+        var values = new long[LANES];
+        for (var i = 0; i < LANES; i++) {
+            values[i] = lanes.get(i);
+        }
+
+        return toByteString(values, 0);
+    }
+
+    /**
+     * @param lanes accumulator array
+     * @param offset index of the first lane
+     * @return SHA-256 of LANES lanes starting at offset
+     */
+    public static ByteString toByteString(long[] lanes, int offset) {
+        var buffer = ByteBuffer.allocate(LANES * Long.BYTES);
+        for (var i = 0; i < LANES; i++) {
+            buffer.putLong(lanes[offset + i]);
+        }
+
+        return DataUtils.getDigest(buffer.array());
+    }
+
+    /**
+     * Lane-wise sum of four packed 16-bit lanes, carries do not cross lanes
+     */
+    public static long add(long a, long b) {
+        return ((a & ~HIGH_BITS) + (b & ~HIGH_BITS)) ^ ((a ^ b) & HIGH_BITS);
+    }
+
+    /**
+     * Lane-wise difference of four packed 16-bit lanes, borrows do not cross lanes
+     */
+    public static long subtract(long a, long b) {
+        return ((a | HIGH_BITS) - (b & ~HIGH_BITS)) ^ ((a ^ ~b) & HIGH_BITS);
+    }
+
+    /**
+     * @return element hash of a key -> value entry, LANES packed longs
+     */
+    public static long[] hash(int key, int value) {
+        var element = ByteBuffer.allocate(Integer.BYTES * 2);
+        element.putInt(key).putInt(value);
+        return hash(element.array());
+    }
+
+    private static long[] hash(byte[] element) {
+        var key = sha256.get().digest(element);
+        byte[] stream;
+        try {
+            var cipher = aesCtr.get();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(ZERO_IV));
+            stream = cipher.doFinal(new byte[LANES * Long.BYTES]);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        var hash = new long[LANES];
+        ByteBuffer.wrap(stream).asLongBuffer().get(hash);
+        return hash;
+    }
+}
@@ -0,0 +1,288 @@
+package com.gbft.framework.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Progress of a chunked state transfer on the fetching node.
+ *
+ * Peers first send a manifest, the accumulators of every subtree of one tree
+ * level. Subtree accumulators are sums, so summing up to the checkpoint digest
+ * does not pin down the subtrees, a manifest is only used once `quorum` peers
+ * sent the same one. After that every chunk is checked subtree by subtree
+ * against it, so a faulty peer cannot slip in records even though chunks
+ * arrive from several peers. Chunks arriving earlier are kept until then.
+ * A requested partition expires once no chunk of it arrived within the timeout.
+ */
+public class StateTransfer {
+
+    private static final int LANES = StateDigest.LANES;
+
+    private final long checkpointNum;
+    private final ByteString checkpointDigest;
+    private final int level;
+    private final StateTree localTree;
+    private final int quorum;
+    private final long timeout;
+
+    // manifest -> peers that sent it, until quorum peers agree on one
+    private Map<ByteString, Set<Integer>> manifestVotes;
+    // chunks received before a manifest was agreed on, by peer
+    private Map<Integer, List<Map<Integer, Integer>>> pendingChunks;
+    // peers that sent another manifest than the agreed one or an invalid chunk
+    private Set<Integer> rejected;
+
+    // verified accumulators of the checkpoint subtrees, null until a manifest is agreed on
+    private ByteString agreed;
+    private long[] manifest;
+    private Set<Integer> missing;
+    private Map<Integer, Integer> entries;
+
+    // (peer, partition) -> chunks received so far
+    private Map<String, Progress> progress;
+
+    /**
+     * @param timeout nanoseconds a requested partition may go without a chunk before it expires
+     */
+    public StateTransfer(long checkpointNum, ByteString checkpointDigest, StateTree localTree, int level, int quorum,
+            long timeout) {
+        this.checkpointNum = checkpointNum;
+        this.checkpointDigest = checkpointDigest;
+        this.localTree = localTree;
+        this.level = level;
+        this.quorum = quorum;
+        this.timeout = timeout;
+
+        manifestVotes = new HashMap<>();
+        pendingChunks = new HashMap<>();
+        rejected = new HashSet<>();
+        entries = new HashMap<>();
+        progress = new HashMap<>();
+    }
+
+    public static ByteString encodeManifest(long[] lanes) {
+        var buffer = ByteBuffer.allocate(lanes.length * Long.BYTES);
+        for (var lane : lanes) {
+            buffer.putLong(lane);
+        }
+        return ByteString.copyFrom(buffer.array());
+    }
+
+    /**
+     * @return false if the manifest is malformed, does not sum up to the checkpoint
+     *         digest or differs from the agreed one
+     */
+    public synchronized boolean setManifest(int peer, ByteString data) {
+        var width = localTree.getWidth(level);
+        if (data.size() != width * LANES * Long.BYTES) {
+            return false;
+        }
+
+        var buffer = data.asReadOnlyByteBuffer();
+        var lanes = new long[width * LANES];
+        var root = new long[LANES];
+        for (var i = 0; i < lanes.length; i++) {
+            lanes[i] = buffer.getLong();
+            root[i % LANES] = StateDigest.add(root[i % LANES], lanes[i]);
+        }
+
+        if (!StateDigest.toByteString(root, 0).equals(checkpointDigest)) {
+            return false;
+        }
+        if (agreed != null) {
+            return agreed.equals(data);
+        }
+
+        var peers = manifestVotes.computeIfAbsent(data, d -> new HashSet<>());
+        peers.add(peer);
+        if (peers.size() >= quorum) {
+            agree(data, lanes);
+        }
+
+        return true;
+    }
+
+    private void agree(ByteString data, long[] lanes) {
+        agreed = data;
+        manifest = lanes;
+        missing = new HashSet<>();
+        var local = localTree.getLanes(level);
+        for (var node = 0; node < localTree.getWidth(level); node++) {
+            var from = node * LANES;
+            if (!Arrays.equals(manifest, from, from + LANES, local, from, from + LANES)) {
+                missing.add(node);
+            }
+        }
+
+        for (var vote : manifestVotes.entrySet()) {
+            if (!vote.getKey().equals(data)) {
+                rejected.addAll(vote.getValue());
+            }
+        }
+        manifestVotes.clear();
+
+        for (var pending : pendingChunks.entrySet()) {
+            for (var records : pending.getValue()) {
+                if (!verifyChunk(records)) {
+                    rejected.add(pending.getKey());
+                }
+            }
+        }
+        pendingChunks.clear();
+    }
+
+    /**
+     * Verify and keep the subtrees of a chunk, subtrees received before are skipped.
+     * Without an agreed manifest the chunk is kept and verified once there is one.
+     * @param records record -> value, whole subtrees of the transfer level
+     * @return false if any subtree does not match the manifest, the chunk is dropped
+     */
+    public synchronized boolean addChunk(int peer, Map<Integer, Integer> records) {
+        if (manifest == null) {
+            pendingChunks.computeIfAbsent(peer, p -> new ArrayList<>()).add(records);
+            return true;
+        }
+        return verifyChunk(records);
+    }
+
+    private boolean verifyChunk(Map<Integer, Integer> records) {
+
+        var subtrees = new HashMap<Integer, long[]>();
+        var counts = new HashMap<Integer, Integer>();
+        for (var entry : records.entrySet()) {
+            var record = entry.getKey();
+            if (record < 0 || record >= localTree.getSize()) {
+                return false;
+            }
+
+            var node = localTree.getSubtree(record, level);
+            var sum = subtrees.computeIfAbsent(node, n -> new long[LANES]);
+            var hash = StateDigest.hash(record, entry.getValue());
+            for (var i = 0; i < LANES; i++) {
+                sum[i] = StateDigest.add(sum[i], hash[i]);
+            }
+            counts.merge(node, 1, Integer::sum);
+        }
+
+        for (var subtree : subtrees.entrySet()) {
+            var node = subtree.getKey();
+            var range = localTree.getRange(level, node);
+            var from = node * LANES;
+            if (counts.get(node) != range[1] - range[0]
+                    || !Arrays.equals(subtree.getValue(), 0, LANES, manifest, from, from + LANES)) {
+                return false;
+            }
+        }
+
+        for (var entry : records.entrySet()) {
+            if (missing.contains(localTree.getSubtree(entry.getKey(), level))) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        missing.removeAll(subtrees.keySet());
+
+        return true;
+    }
+
+    /**
+     * Register a partition requested from a peer, it answers with at least one chunk
+     */
+    public synchronized void expect(int peer, int partition) {
+        progress.put(peer + ":" + partition, new Progress(peer, partition, System.nanoTime() + timeout));
+    }
+
+    /**
+     * @return true once every chunk announced for every requested partition has arrived
+     */
+    public synchronized boolean chunkReceived(int peer, int partition, int chunkCount) {
+        var counter = progress.get(peer + ":" + partition);
+        if (counter != null) {
+            counter.received += 1;
+            counter.total = chunkCount;
+            counter.deadline = System.nanoTime() + timeout;
+        }
+
+        return progress.values().stream().allMatch(c -> c.received >= c.total);
+    }
+
+    /**
+     * Stop waiting for a partition of a peer, e.g. once it is asked from another peer
+     */
+    public synchronized void drop(int peer, int partition) {
+        progress.remove(peer + ":" + partition);
+    }
+
+    /**
+     * Drop the partitions that went without a chunk for the timeout
+     * @return [peer, partition] of every expired partition
+     */
+    public synchronized List<int[]> takeExpired() {
+        var now = System.nanoTime();
+        var expired = new ArrayList<int[]>();
+        var iterator = progress.values().iterator();
+        while (iterator.hasNext()) {
+            var counter = iterator.next();
+            if (counter.received < counter.total && now - counter.deadline >= 0) {
+                expired.add(new int[] { counter.peer, counter.partition });
+                iterator.remove();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return peers found faulty while verifying chunks kept back or other manifests,
+     *         each reported once
+     */
+    public synchronized Set<Integer> takeRejected() {
+        var peers = rejected;
+        rejected = new HashSet<>();
+        return peers;
+    }
+
+    public synchronized boolean isComplete() {
+        return manifest != null && missing.isEmpty();
+    }
+
+    public synchronized Map<Integer, Integer> getEntries() {
+        return entries;
+    }
+
+    public synchronized int getMissingCount() {
+        return missing == null ? -1 : missing.size();
+    }
+
+    public long getCheckpointNum() {
+        return checkpointNum;
+    }
+
+    public ByteString getCheckpointDigest() {
+        return checkpointDigest;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    private static class Progress {
+        private final int peer;
+        private final int partition;
+        private int received;
+        private int total = 1;
+        private long deadline;
+
+        private Progress(int peer, int partition, long deadline) {
+            this.peer = peer;
+            this.partition = partition;
+            this.deadline = deadline;
+        }
+    }
+}
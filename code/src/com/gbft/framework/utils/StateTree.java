@@ -0,0 +1,254 @@
+package com.gbft.framework.utils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Merkle tree of LtHash accumulators over the records [0, size).
+ *
+ * Leaves cover `fanout` consecutive records and every internal node covers
+ * `fanout` children. A node holds the lane-wise sum of its children, so the
+ * root equals `StateDigest` of the whole state, a record update adds one hash
+ * delta along its path, and two states can be compared subtree by subtree.
+ */
+public class StateTree {
+
+    private static final int LANES = StateDigest.LANES;
+
+    private final int size;
+    private final int fanout;
+
+    // levels[0] is the root, levels[depth - 1] are the leaves
+    // node i of a level occupies lanes [i * LANES, (i + 1) * LANES)
+    private final AtomicLongArray[] levels;
+    private final int[] widths;
+    // number of records covered by one node of a level
+    private final long[] spans;
+
+    /**
+     * Tree of an empty state, every lane is zero
+     * @param size number of records
+     * @param fanout children per node, at least 2
+     */
+    public StateTree(int size, int fanout) {
+        this.size = size;
+        this.fanout = Math.max(fanout, 2);
+
+        var widthList = new ArrayList<Integer>();
+        var width = Math.max((size + this.fanout - 1) / this.fanout, 1);
+        widthList.add(0, width);
+        while (width > 1) {
+            width = (width + this.fanout - 1) / this.fanout;
+            widthList.add(0, width);
+        }
+
+        var depth = widthList.size();
+        levels = new AtomicLongArray[depth];
+        widths = new int[depth];
+        spans = new long[depth];
+        var span = (long) this.fanout;
+        for (var level = depth - 1; level >= 0; level--) {
+            widths[level] = widthList.get(level);
+            levels[level] = new AtomicLongArray(widths[level] * LANES);
+            spans[level] = span;
+            span *= this.fanout;
+        }
+    }
+
+    /**
+     * Build the tree of a complete state, leaves and each level are hashed in parallel
+     * @param size number of records
+     * @param fanout children per node
+     * @param valueOf record -> value
+     */
+    public static StateTree of(int size, int fanout, IntUnaryOperator valueOf) {
+        var tree = new StateTree(size, fanout);
+        var leaves = tree.levels.length - 1;
+
+        IntStream.range(0, tree.widths[leaves]).parallel().forEach(node -> {
+            var sum = new long[LANES];
+            var first = node * tree.fanout;
+            var last = Math.min(first + tree.fanout, size);
+            for (var record = first; record < last; record++) {
+                var hash = StateDigest.hash(record, valueOf.applyAsInt(record));
+                for (var i = 0; i < LANES; i++) {
+                    sum[i] = StateDigest.add(sum[i], hash[i]);
+                }
+            }
+            tree.set(leaves, node, sum);
+        });
+
+        for (var level = leaves - 1; level >= 0; level--) {
+            var parent = level;
+            IntStream.range(0, tree.widths[parent]).parallel().forEach(node -> {
+                var sum = new long[LANES];
+                var first = node * tree.fanout;
+                var last = Math.min(first + tree.fanout, tree.widths[parent + 1]);
+                for (var child = first; child < last; child++) {
+                    var lanes = tree.get(parent + 1, child);
+                    for (var i = 0; i < LANES; i++) {
+                        sum[i] = StateDigest.add(sum[i], lanes[i]);
+                    }
+                }
+                tree.set(parent, node, sum);
+            });
+        }
+
+        return tree;
+    }
+
+    public static StateTree of(Map<Integer, Integer> state, int fanout) {
+        return of(state.size(), fanout, record -> state.get(record));
+    }
+
+    public void add(int record, int value) {
+        addAlongPath(record, StateDigest.hash(record, value));
+    }
+
+    public void update(int record, int oldValue, int newValue) {
+        if (oldValue == newValue) {
+            return;
+        }
+
+        var oldHash = StateDigest.hash(record, oldValue);
+        var delta = StateDigest.hash(record, newValue);
+        for (var i = 0; i < LANES; i++) {
+            delta[i] = StateDigest.subtract(delta[i], oldHash[i]);
+        }
+        addAlongPath(record, delta);
+    }
+
+    private void addAlongPath(int record, long[] delta) {
+        for (var level = 0; level < levels.length; level++) {
+            var base = getSubtree(record, level) * LANES;
+            for (var i = 0; i < LANES; i++) {
+                levels[level].getAndAccumulate(base + i, delta[i], StateDigest::add);
+            }
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+
+    public int getDepth() {
+        return levels.length;
+    }
+
+    public int getWidth(int level) {
+        return widths[level];
+    }
+
+    /**
+     * @param maxNodes upper bound on the number of subtrees
+     * @return deepest level with at most maxNodes nodes
+     */
+    public int getLevel(int maxNodes) {
+        var level = 0;
+        while (level + 1 < levels.length && widths[level + 1] <= maxNodes) {
+            level += 1;
+        }
+        return level;
+    }
+
+    /**
+     * @return index of the node at level covering the record
+     */
+    public int getSubtree(int record, int level) {
+        return (int) (record / spans[level]);
+    }
+
+    /**
+     * @return first record and end (exclusive) covered by the node
+     */
+    public int[] getRange(int level, int node) {
+        var first = node * spans[level];
+        var end = Math.min(first + spans[level], size);
+        return new int[] { (int) first, (int) end };
+    }
+
+    /**
+     * @return root digest, equal to `StateDigest.of(state).toByteString()`
+     */
+    public ByteString getDigest() {
+        return StateDigest.toByteString(get(0, 0), 0);
+    }
+
+    public List<ByteString> getDigests(int level) {
+        var digests = new ArrayList<ByteString>(widths[level]);
+        for (var node = 0; node < widths[level]; node++) {
+            digests.add(StateDigest.toByteString(get(level, node), 0));
+        }
+        return digests;
+    }
+
+    /**
+     * @return raw accumulators of all nodes of a level, node i at [i * LANES, (i + 1) * LANES)
+     */
+    public long[] getLanes(int level) {
+        var lanes = new long[widths[level] * LANES];
+        for (var i = 0; i < lanes.length; i++) {
+            lanes[i] = levels[level].get(i);
+        }
+        return lanes;
+    }
+
+    /**
+     * Root digest of the state obtained by replacing whole subtrees, without applying it
+     * @param entries record -> value, covering every record of each subtree it touches
+     * @param level level of the replaced subtrees
+     * @return null if the level or a record is out of range
+     */
+    public ByteString getDigestAfter(Map<Integer, Integer> entries, int level) {
+        if (level < 0 || level >= getDepth()) {
+            return null;
+        }
+        var root = get(0, 0);
+
+        var subtrees = new HashSet<Integer>();
+        for (var entry : entries.entrySet()) {
+            if (entry.getKey() < 0 || entry.getKey() >= size) {
+                return null;
+            }
+            var hash = StateDigest.hash(entry.getKey(), entry.getValue());
+            for (var i = 0; i < LANES; i++) {
+                root[i] = StateDigest.add(root[i], hash[i]);
+            }
+            subtrees.add(getSubtree(entry.getKey(), level));
+        }
+
+        for (var node : subtrees) {
+            var lanes = get(level, node);
+            for (var i = 0; i < LANES; i++) {
+                root[i] = StateDigest.subtract(root[i], lanes[i]);
+            }
+        }
+
+        return StateDigest.toByteString(root, 0);
+    }
+
+    private long[] get(int level, int node) {
+        var lanes = new long[LANES];
+        for (var i = 0; i < LANES; i++) {
+            lanes[i] = levels[level].get(node * LANES + i);
+        }
+        return lanes;
+    }
+
+    private void set(int level, int node, long[] lanes) {
+        for (var i = 0; i < LANES; i++) {
+            levels[level].set(node * LANES + i, lanes[i]);
+        }
+    }
+}
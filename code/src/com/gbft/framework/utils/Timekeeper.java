@@ -158,6 +158,13 @@ public class Timekeeper implements Runnable {
         timeoutQueue.offer(timeoutPair);
     }
 
+    public void release(long seqnum) {
+        multipliers.remove(seqnum);
+        stateUpdates.remove(seqnum);
+        sequenceUpdates.remove(seqnum);
+        overdues.remove(seqnum);
+    }
+
     public TimeoutPair getOverdue(long seqnum) {
         if (overdues.containsKey(seqnum)) {
             for (var overdue : overdues.get(seqnum)) {
@@ -0,0 +1,92 @@
+package com.gbft.framework.utils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.gbft.framework.data.MessageData;
+import com.gbft.framework.statemachine.StateMachine;
+import com.google.protobuf.ByteString;
+
+/**
+ * Votes of one type, view and sender for many sequences packed into a single message.
+ *
+ * A vote carries nothing but its (seqnum, digest), so a vector is the first
+ * vote with every (seqnum, digest) pair stored under `VOTE_VECTOR` in its extra
+ * data, which is covered by the MAC of the message. Receivers expand it back
+ * into one vote per sequence before tallying.
+ *
+ * Layout: [int count]([long seqnum][int digest length][digest])*
+ */
+public class VoteVector {
+
+    public static final int VOTE_VECTOR = 1201;
+
+    /**
+     * @return true if the message is a plain vote that can be packed into a vector
+     */
+    public static boolean isVote(MessageData message) {
+        // request, reply, checkpoint, fetch and report are handled outside of the per-sequence tally
+        var info = StateMachine.messages.get(message.getMessageType());
+        return !StateMachine.specialMessages.contains(info.name) && !info.hasRequestBlock
+                && message.getRequestsCount() == 0
+                && message.getReplyDataCount() == 0 && message.getAggregationValuesCount() == 0
+                && message.getExtraValuesCount() == 0 && message.getFlagsCount() == 0
+                && !message.hasFetch() && !message.hasReport() && !message.hasSwitch()
+                && message.getExtraDataCount() == 0;
+    }
+
+    public static boolean isVector(MessageData message) {
+        return message.containsExtraData(VOTE_VECTOR);
+    }
+
+    /**
+     * Pack unauthenticated votes sharing type, view, source and targets, the
+     * pipeline authenticates the vector once when sending it
+     */
+    public static MessageData aggregate(List<MessageData> votes) {
+        var size = Integer.BYTES;
+        for (var vote : votes) {
+            size += Long.BYTES + Integer.BYTES + vote.getDigest().size();
+        }
+
+        var buffer = ByteBuffer.allocate(size);
+        buffer.putInt(votes.size());
+        for (var vote : votes) {
+            buffer.putLong(vote.getSequenceNum()).putInt(vote.getDigest().size());
+            vote.getDigest().copyTo(buffer);
+        }
+        buffer.flip();
+
+        return votes.get(0).toBuilder()
+                    .clearRequestNums()
+                    .putExtraData(VOTE_VECTOR, ByteString.copyFrom(buffer))
+                    .build();
+    }
+
+    /**
+     * @return one vote per packed sequence, empty if the vector is malformed
+     */
+    public static List<MessageData> expand(MessageData vector) {
+        var buffer = vector.getExtraDataOrThrow(VOTE_VECTOR).asReadOnlyByteBuffer();
+        var base = vector.toBuilder().removeExtraData(VOTE_VECTOR);
+
+        var votes = new ArrayList<MessageData>();
+        try {
+            var count = buffer.getInt();
+            for (var i = 0; i < count; i++) {
+                var seqnum = buffer.getLong();
+                var length = buffer.getInt();
+                var digest = ByteString.copyFrom(buffer.slice(buffer.position(), length));
+                buffer.position(buffer.position() + length);
+
+                votes.add(base.setSequenceNum(seqnum).setDigest(digest).build());
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return List.of();
+        }
+
+        return votes;
+    }
+}
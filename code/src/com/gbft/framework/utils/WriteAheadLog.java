@@ -0,0 +1,429 @@
+package com.gbft.framework.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import com.gbft.framework.data.RequestData;
+
+/**
+ * Append-only log of committed request blocks.
+ *
+ * The executor appends blocks, a flusher thread writes everything appended
+ * since its last round with one gathering write and, depending on the
+ * durability mode, one fsync for the whole group:
+ * - async: fsync at most every `storage.sync-interval-ms`, nobody waits
+ * - sync: fsync every group, `await(seqnum)` blocks until the block is durable
+ *
+ * The log is split into segments `node-{id}-{index}.wal`. `truncate(seqnum)`
+ * starts a new segment and deletes the segments holding only blocks up to
+ * seqnum, which is called once a snapshot covering them is on disk.
+ *
+ * Record layout: [int length][int crc32][long seqnum][int count]([int size][request])*
+ * where length and crc32 cover everything after the crc32.
+ */
+public class WriteAheadLog {
+
+    public static final String NONE = "none";
+    public static final String ASYNC = "async";
+    public static final String SYNC = "sync";
+
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    private final String durability;
+    private final int id;
+    private final File directory;
+    private final long syncInterval;
+
+    // segment index -> highest seqnum it holds, -1 if none
+    private final ConcurrentSkipListMap<Integer, Long> segments;
+    private int segment;
+    private File file;
+    private FileChannel channel;
+
+    private final LinkedBlockingQueue<Record> pending;
+    private final Thread flusher;
+    // cleared by close, records are no longer accepted, guarded by pending
+    private volatile boolean running;
+    // set once the flusher wrote the remaining records and exited
+    private volatile boolean stopped;
+
+    // every block up to this sequence has been forced to disk
+    private volatile long durableSequenceNum;
+    private long writtenSequenceNum;
+    private long lastSync;
+
+    private final LongAdder blocks;
+    private final LongAdder bytes;
+    private final LongAdder syncs;
+    private final LongAdder syncNanos;
+    private final LongAdder waitNanos;
+
+    private WriteAheadLog(String durability, int id, File directory, boolean recover) throws IOException {
+        this.durability = durability;
+        this.id = id;
+        this.directory = directory;
+
+        // segments left by a previous run are kept for replay, or discarded
+        segments = new ConcurrentSkipListMap<>();
+        directory.mkdirs();
+        var prefix = "node-" + id + "-";
+        for (var existing : directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".wal"))) {
+            if (recover) {
+                var name = existing.getName();
+                segments.put(Integer.parseInt(name.substring(prefix.length(), name.length() - 4)), -1L);
+            } else {
+                existing.delete();
+            }
+        }
+
+        segment = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        openSegment();
+
+        var interval = Config.integer("storage.sync-interval-ms");
+        syncInterval = (interval > 0 ? interval : 10) * 1000000L;
+
+        pending = new LinkedBlockingQueue<>();
+        durableSequenceNum = -1;
+        writtenSequenceNum = -1;
+        lastSync = System.nanoTime();
+
+        blocks = new LongAdder();
+        bytes = new LongAdder();
+        syncs = new LongAdder();
+        syncNanos = new LongAdder();
+        waitNanos = new LongAdder();
+
+        running = true;
+        flusher = new Thread(() -> flush());
+        flusher.start();
+    }
+
+    /**
+     * Open the log of a node according to `storage.durability`, segments of a
+     * previous run are kept for `replay` only if `storage.recover` is set
+     * @param id node id
+     * @return null if durability is none
+     */
+    public static WriteAheadLog open(int id) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        try {
+            return new WriteAheadLog(Config.string("storage.durability"), id, getDirectory(),
+                    Config.bool("storage.recover"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static boolean isEnabled() {
+        var durability = Config.string("storage.durability");
+        return durability.equals(ASYNC) || durability.equals(SYNC);
+    }
+
+    public static File getDirectory() {
+        var directory = Config.string("storage.directory");
+        return new File(directory.isEmpty() ? "storage" : directory);
+    }
+
+    private void openSegment() throws IOException {
+        file = getSegmentFile(segment);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        segments.put(segment, -1L);
+    }
+
+    private File getSegmentFile(int index) {
+        return new File(directory, String.format("node-%d-%08d.wal", id, index));
+    }
+
+    /**
+     * Re-apply the blocks of a previous run that follow a snapshot, must be called
+     * before the first `append`. Segments are memory-mapped and scanned up to the
+     * first torn or corrupted record, only consecutive sequences are applied.
+     * @param afterSeqnum last sequence covered by the restored snapshot, -1 if none
+     * @param consumer invoked with seqnum and block in sequence order
+     * @return last applied sequence number
+     */
+    public long replay(long afterSeqnum, BiConsumer<Long, List<RequestData>> consumer) {
+        var blocks = new TreeMap<Long, List<RequestData>>();
+
+        scan:
+        for (var entry : segments.headMap(segment).entrySet()) {
+            var path = getSegmentFile(entry.getKey()).toPath();
+            try (var reader = FileChannel.open(path, StandardOpenOption.READ)) {
+                var buffer = reader.map(FileChannel.MapMode.READ_ONLY, 0, reader.size());
+                var maxSeqnum = -1L;
+                while (buffer.remaining() >= HEADER_SIZE) {
+                    var size = buffer.getInt();
+                    var checksum = buffer.getInt();
+                    if (size < Long.BYTES + Integer.BYTES || size > buffer.remaining()) {
+                        break scan;
+                    }
+
+                    var body = buffer.slice(buffer.position(), size);
+                    var crc = new CRC32();
+                    crc.update(body.duplicate());
+                    if ((int) crc.getValue() != checksum) {
+                        break scan;
+                    }
+                    buffer.position(buffer.position() + size);
+
+                    var seqnum = body.getLong();
+                    maxSeqnum = Math.max(maxSeqnum, seqnum);
+                    if (seqnum <= afterSeqnum) {
+                        continue;
+                    }
+
+                    var count = body.getInt();
+                    var block = new ArrayList<RequestData>(count);
+                    for (var i = 0; i < count; i++) {
+                        var length = body.getInt();
+                        block.add(RequestData.parseFrom(body.slice(body.position(), length)));
+                        body.position(body.position() + length);
+                    }
+                    blocks.put(seqnum, block);
+                }
+                segments.put(entry.getKey(), maxSeqnum);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+
+        var seqnum = afterSeqnum;
+        while (blocks.containsKey(seqnum + 1)) {
+            seqnum += 1;
+            consumer.accept(seqnum, blocks.get(seqnum));
+        }
+
+        return seqnum;
+    }
+
+    public void append(long seqnum, List<RequestData> block) {
+        var requests = new ArrayList<byte[]>(block.size());
+        var size = Long.BYTES + Integer.BYTES;
+        for (var request : block) {
+            var data = request.toByteArray();
+            requests.add(data);
+            size += Integer.BYTES + data.length;
+        }
+
+        var buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+        buffer.position(HEADER_SIZE);
+        buffer.putLong(seqnum).putInt(requests.size());
+        for (var data : requests) {
+            buffer.putInt(data.length).put(data);
+        }
+
+        var crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, size);
+        buffer.putInt(0, size).putInt(Integer.BYTES, (int) crc.getValue());
+        buffer.flip();
+
+        enqueue(new Record(seqnum, buffer));
+    }
+
+    /**
+     * Drop the log up to seqnum, e.g. once a snapshot covering it is on disk.
+     * The current segment is closed and every segment holding only blocks up to
+     * seqnum is deleted by the flusher.
+     */
+    public void truncate(long seqnum) {
+        enqueue(new Record(seqnum, null));
+    }
+
+    private void enqueue(Record record) {
+        synchronized (pending) {
+            if (running) {
+                pending.add(record);
+            }
+        }
+    }
+
+    /**
+     * Wait until the block of seqnum is on disk, only blocks in sync mode
+     */
+    public void await(long seqnum) {
+        if (!durability.equals(SYNC)) {
+            return;
+        }
+
+        var begin = System.nanoTime();
+        synchronized (this) {
+            while (durableSequenceNum < seqnum && !stopped) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+        waitNanos.add(System.nanoTime() - begin);
+    }
+
+    private void flush() {
+        var group = new ArrayList<Record>();
+        while (true) {
+            // nothing is queued after running is cleared, exit once the queue is drained
+            var stopping = !running;
+            group.clear();
+            try {
+                var first = pending.poll(syncInterval, TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    group.add(first);
+                    pending.drainTo(group);
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (stopping && group.isEmpty()) {
+                break;
+            }
+
+            try {
+                var from = 0;
+                for (var i = 0; i < group.size(); i++) {
+                    if (group.get(i).buffer == null) {
+                        write(group.subList(from, i));
+                        sync(true);
+                        rollSegment(group.get(i).seqnum);
+                        from = i + 1;
+                    }
+                }
+                write(group.subList(from, group.size()));
+                sync(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            sync(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write(List<Record> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        var buffers = new ByteBuffer[records.size()];
+        var size = 0L;
+        var maxSeqnum = -1L;
+        for (var i = 0; i < records.size(); i++) {
+            buffers[i] = records.get(i).buffer;
+            size += buffers[i].remaining();
+            maxSeqnum = Math.max(maxSeqnum, records.get(i).seqnum);
+        }
+        writtenSequenceNum = Math.max(writtenSequenceNum, maxSeqnum);
+        segments.merge(segment, maxSeqnum, Math::max);
+        bytes.add(size);
+        blocks.add(records.size());
+        while (size > 0) {
+            size -= channel.write(buffers);
+        }
+    }
+
+    private void sync(boolean force) throws IOException {
+        var now = System.nanoTime();
+        if (writtenSequenceNum > durableSequenceNum
+                && (force || durability.equals(SYNC) || now - lastSync >= syncInterval)) {
+            channel.force(false);
+            lastSync = System.nanoTime();
+            syncs.increment();
+            syncNanos.add(lastSync - now);
+
+            synchronized (this) {
+                durableSequenceNum = writtenSequenceNum;
+                notifyAll();
+            }
+        }
+    }
+
+    private void rollSegment(long seqnum) throws IOException {
+        channel.close();
+        segment += 1;
+        openSegment();
+
+        for (var entry : segments.headMap(segment).entrySet()) {
+            if (entry.getValue() <= seqnum) {
+                getSegmentFile(entry.getKey()).delete();
+                segments.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Stop accepting records, write and force the queued ones, then close the segment.
+     * Interrupting the flusher instead would close the channel under a pending write.
+     */
+    public void close() {
+        synchronized (pending) {
+            running = false;
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        stopped = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getDurableSequenceNum() {
+        return durableSequenceNum;
+    }
+
+    /**
+     * @return cumulative statistics, compare runs with different `storage.durability`
+     */
+    public String getReport() {
+        var syncCount = syncs.sum();
+        var blockCount = blocks.sum();
+        var avgGroup = syncCount == 0 ? 0.0 : (double) blockCount / syncCount;
+        var avgSync = syncCount == 0 ? 0L : syncNanos.sum() / syncCount;
+        var avgWait = blockCount == 0 ? 0L : waitNanos.sum() / blockCount;
+        return String.format("mode: %s, blocks: %d, mb: %.2f, syncs: %d, avg-group: %.2f, avg-sync: %s, avg-wait: %s",
+                durability, blockCount, bytes.sum() / 1048576.0, syncCount, avgGroup,
+                Printer.timeFormat(avgSync, true), Printer.timeFormat(avgWait, true));
+    }
+
+    private static class Record {
+        private final long seqnum;
+        private final ByteBuffer buffer;
+
+        private Record(long seqnum, ByteBuffer buffer) {
+            this.seqnum = seqnum;
+            this.buffer = buffer;
+        }
+    }
+}
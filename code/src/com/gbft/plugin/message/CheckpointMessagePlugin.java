@@ -1,9 +1,15 @@
 package com.gbft.plugin.message;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
 
 import com.gbft.framework.core.Entity;
 import com.gbft.framework.data.FetchData;
@@ -13,11 +19,14 @@ import com.gbft.framework.statemachine.StateMachine;
 import com.gbft.framework.utils.CheckpointManager;
 import com.gbft.framework.utils.Config;
 import com.gbft.framework.utils.DataUtils;
+import com.gbft.framework.utils.EntityMapUtils;
 import com.gbft.framework.utils.MessageTally;
 import com.gbft.framework.utils.MessageTally.QuorumId;
+import com.gbft.framework.utils.StateTransfer;
+import com.gbft.framework.utils.StateTree;
 import com.google.protobuf.ByteString;
 
-public class CheckpointMessagePlugin implements MessagePlugin {
+public class CheckpointMessagePlugin implements MessagePlugin, Runnable {
 
     private Entity entity;
     private CheckpointManager checkpointManager;
@@ -32,6 +41,35 @@ public class CheckpointMessagePlugin implements MessagePlugin {
     // digest of stable checkpoint s to be fetched
     private ByteString checkpointDigest;
 
+    // partial state transfer, the requester sends its subtree digests of one tree level
+    // and only differing subtrees are returned
+    private static final int FETCH_TREE_LEVEL = 1101;
+    private static final int FETCH_TREE_FANOUT = 1102;
+    private static final int FETCH_TREE_DIGESTS = 1103;
+    private static final int MAX_FETCH_SUBTREES = 4096;
+    private static final int DIGEST_SIZE = 32;
+
+    // chunked transfer, each peer serves one partition of the subtrees
+    private static final int FETCH_PARTITION = 1104;
+    private static final int FETCH_PARTITION_COUNT = 1105;
+    private static final int FETCH_CHUNK_COUNT = 1106;
+    private static final int FETCH_MANIFEST = 1107;
+    // client table snapshot carried by CHECKPOINT messages, installed with a fetched state
+    public static final int CLIENT_TABLE = 1108;
+    private final int chunkRecords;
+    private final int fetchPeers;
+    private final long fetchTimeout;
+    // deadline of an ongoing full-state fetch, 0 if there is none
+    private long fullFetchDeadline;
+
+    private StateTransfer transfer;
+    private List<Integer> transferPeers;
+    private Set<Integer> faultyPeers;
+    // peer -> partitions requested from it
+    private Map<Integer, Set<Integer>> peerPartitions;
+    // checkpointNum -> client table snapshot -> nodes that sent it
+    private TreeMap<Long, Map<ByteString, Set<Integer>>> clientTables;
+
     public CheckpointMessagePlugin(Entity entity) {
         this.entity = entity;
         checkpointManager = entity.getCheckpointManager();
@@ -43,6 +81,50 @@ public class CheckpointMessagePlugin implements MessagePlugin {
 
         tally = new MessageTally();
         isFetching = new AtomicBoolean(false);
+        clientTables = new TreeMap<>();
+
+        var records = Config.integer("benchmark.fetch-chunk-records");
+        chunkRecords = records > 0 ? records : 65536;
+        fetchPeers = Config.integer("benchmark.fetch-peers");
+        var timeout = Config.integer("benchmark.fetch-timeout-ms");
+        fetchTimeout = (timeout > 0 ? timeout : 2000) * 1000000L;
+
+        if (!entity.isClient()) {
+            entity.registerThread(new Thread(this));
+        }
+    }
+
+    /**
+     * Expire fetches from peers that stopped answering
+     */
+    @Override
+    public void run() {
+        while (entity.isRunning()) {
+            LockSupport.parkNanos(fetchTimeout / 4);
+            checkFetch();
+        }
+    }
+
+    private synchronized void checkFetch() {
+        if (transfer != null) {
+            var checkpointNum = transfer.getCheckpointNum();
+            for (var expired : transfer.takeExpired()) {
+                if (transfer == null) {
+                    // fell back to a full fetch
+                    break;
+                }
+                var peer = expired[0];
+                System.out.println(entity.prefix + "FETCH from " + peer + " timed out, checkpointNum: " + checkpointNum);
+                faultyPeers.add(peer);
+                reassign(checkpointNum, peer, List.of(expired[1]));
+            }
+        }
+
+        if (fullFetchDeadline != 0 && System.nanoTime() - fullFetchDeadline >= 0) {
+            System.out.println(entity.prefix + "Full FETCH timed out");
+            fullFetchDeadline = 0;
+            isFetching.set(false);
+        }
     }
 
     @Override
@@ -64,6 +146,7 @@ public class CheckpointMessagePlugin implements MessagePlugin {
             var min = checkpointManager.getMinCheckpoint();
             if (message.getSequenceNum() >= min) {
                 tally.tally(message);
+                addClientTable(message);
                 processCheckpoints(message.getSequenceNum());
             }
         }
@@ -73,53 +156,69 @@ public class CheckpointMessagePlugin implements MessagePlugin {
             if (message.getFetch().getIsRequest()) {
                 // send service state stored in the corresponding checkpoint
                 var target = message.getSource();
-                var _message = DataUtils.createMessage(checkpointNum, 0L, FETCH, entity.getId(), List.of(target),
-                        List.of(), entity.EMPTY_BLOCK, null, null);
-
-                var fetchDataBuilder = FetchData.newBuilder().setIsRequest(false);
                 if (checkpointNum < checkpointManager.getMinCheckpoint()
                         || checkpointManager.getCheckpoint(checkpointNum).getServiceState() == null) {
                     System.out.println(entity.prefix + "No valid local checkpoint for checkpointNum " + checkpointNum);
+                    // echo the partition without a chunk count so that it gets asked from another node
+                    var values = message.containsExtraData(FETCH_TREE_DIGESTS)
+                            ? Map.of(FETCH_TREE_LEVEL, message.getExtraValuesOrThrow(FETCH_TREE_LEVEL),
+                                    FETCH_PARTITION, message.getExtraValuesOrDefault(FETCH_PARTITION, 0L))
+                            : Map.<Integer, Long>of();
+                    sendFetchReply(checkpointNum, target, FetchData.newBuilder().setIsRequest(false), values);
                 } else {
-                    // deep copy the service state stored in the checkpoint
-                    Map<Integer, Integer> serviceState = new HashMap<>();
-                    checkpointManager.getCheckpoint(checkpointNum).getServiceState().getRecords()
-                            .forEach((key, value) -> serviceState.put(key, value.get()));
-                    fetchDataBuilder = fetchDataBuilder.putAllServiceState(serviceState);
+                    var serviceState = checkpointManager.getCheckpoint(checkpointNum).getServiceState();
+                    if (!sendChunks(message, serviceState)) {
+                        var fetchDataBuilder = FetchData.newBuilder().setIsRequest(false).putAllServiceState(serviceState);
+                        sendFetchReply(checkpointNum, target, fetchDataBuilder, Map.of());
+                    }
                 }
-                _message = _message.toBuilder().setFetch(fetchDataBuilder).build();
-
-                entity.sendMessage(_message);
 
                 System.out.println(entity.prefix + "Sending FETCH reply, checkpointNum: " + checkpointNum);
             } else {
                 System.out.println(entity.prefix + "Receiving FETCH reply, checkpointNum: " + checkpointNum);
 
-                // update local service state
-                var service_state = message.getFetch().getServiceStateMap();
-                if (service_state.isEmpty()) {
-                    System.out.println(entity.prefix + "Fetch result is empty, checkpointNum: " + checkpointNum);
-                } else {
-                    // check if digests match
-                    if (checkpointManager.getCheckpointDigest(service_state).equals(checkpointDigest)) {
-                        var lastExecutedSequenceNum = (checkpointNum + 1) * checkpointSize - 1;
-                        entity.setServiceState(service_state, lastExecutedSequenceNum);
-
-                        checkpointManager.setLowWaterMark(checkpointNum);
-
-                        System.out.println(entity.prefix + "Local service state updated, lastExecutedSequenceNum: " + lastExecutedSequenceNum);
-                    } else {
-                        System.out.println(entity.prefix + "Fetch result does not match the digest, checkpointNum: " + checkpointNum);
-                    }
+                var level = (int) message.getExtraValuesOrDefault(FETCH_TREE_LEVEL, -1L);
+                if (level >= 0) {
+                    processChunk(message, level);
+                    return DataUtils.invalidate(message);
                 }
 
-                isFetching.set(false);
+                processFullState(message);
             }
         }
 
         return DataUtils.invalidate(message);
     }
 
+    private synchronized void processFullState(MessageData message) {
+        if (fullFetchDeadline == 0) {
+            // timed out or not asked for
+            return;
+        }
+
+        // update local service state
+        var checkpointNum = message.getSequenceNum();
+        var service_state = message.getFetch().getServiceStateMap();
+        if (service_state.isEmpty()) {
+            System.out.println(entity.prefix + "Fetch result is empty, checkpointNum: " + checkpointNum);
+        } else {
+            // check if digests match
+            var lastExecutedSequenceNum = (checkpointNum + 1) * checkpointSize - 1;
+            if (entity.setServiceState(service_state, -1, checkpointDigest, getClientTable(checkpointNum),
+                    lastExecutedSequenceNum)) {
+                checkpointManager.setLowWaterMark(checkpointNum);
+
+                System.out.println(entity.prefix + "Local service state updated, lastExecutedSequenceNum: " + lastExecutedSequenceNum);
+            } else {
+                System.out.println(entity.prefix + "Fetch result does not match the digest, checkpointNum: " + checkpointNum);
+            }
+        }
+
+        fullFetchDeadline = 0;
+        transfer = null;
+        isFetching.set(false);
+    }
+
     @Override
     public MessageData processOutgoingMessage(MessageData message) {
         if (entity.isClient() || message.getMessageType() != CHECKPOINT && message.getMessageType() != FETCH) {
@@ -128,12 +227,232 @@ public class CheckpointMessagePlugin implements MessagePlugin {
 
         if (message.getMessageType() == CHECKPOINT) {
             tally.tally(message);
+            addClientTable(message);
             processCheckpoints(message.getSequenceNum());
         }
 
         return message;
     }
 
+    /**
+     * Compare the requester's subtree digests with the checkpoint state and stream
+     * the differing subtrees of the requested partition in bounded chunks.
+     * The first chunk carries the manifest the requester verifies chunks against.
+     * @return false if the full state has to be sent instead
+     */
+    private boolean sendChunks(MessageData request, Map<Integer, Integer> serviceState) {
+        if (!request.containsExtraData(FETCH_TREE_DIGESTS)) {
+            return false;
+        }
+
+        var checkpointNum = request.getSequenceNum();
+        var target = request.getSource();
+        var level = (int) request.getExtraValuesOrThrow(FETCH_TREE_LEVEL);
+        var fanout = (int) request.getExtraValuesOrThrow(FETCH_TREE_FANOUT);
+        var partition = (int) request.getExtraValuesOrDefault(FETCH_PARTITION, 0L);
+        var partitionCount = (int) request.getExtraValuesOrDefault(FETCH_PARTITION_COUNT, 1L);
+        var remote = request.getExtraDataOrThrow(FETCH_TREE_DIGESTS);
+
+        // subtree digests of the checkpoint are computed in parallel
+        var tree = StateTree.of(serviceState, fanout);
+        if (level >= tree.getDepth() || remote.size() != tree.getWidth(level) * DIGEST_SIZE) {
+            return false;
+        }
+
+        var chunks = new ArrayList<List<Integer>>();
+        var chunk = new ArrayList<Integer>();
+        var size = 0;
+        var local = tree.getDigests(level);
+        for (var node = partition; node < local.size(); node += partitionCount) {
+            if (local.get(node).equals(remote.substring(node * DIGEST_SIZE, (node + 1) * DIGEST_SIZE))) {
+                continue;
+            }
+
+            var range = tree.getRange(level, node);
+            if (!chunk.isEmpty() && size + range[1] - range[0] > chunkRecords) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                size = 0;
+            }
+            chunk.add(node);
+            size += range[1] - range[0];
+        }
+        chunks.add(chunk);
+
+        for (var index = 0; index < chunks.size(); index++) {
+            var fetchDataBuilder = FetchData.newBuilder().setIsRequest(false);
+            for (var node : chunks.get(index)) {
+                var range = tree.getRange(level, node);
+                for (var record = range[0]; record < range[1]; record++) {
+                    fetchDataBuilder.putServiceState(record, serviceState.get(record));
+                }
+            }
+
+            var values = Map.of(FETCH_TREE_LEVEL, (long) level, FETCH_PARTITION, (long) partition,
+                    FETCH_CHUNK_COUNT, (long) chunks.size());
+            var manifest = index == 0 ? StateTransfer.encodeManifest(tree.getLanes(level)) : null;
+            sendFetchReply(checkpointNum, target, fetchDataBuilder, values, manifest);
+        }
+
+        return true;
+    }
+
+    private void sendFetchReply(long checkpointNum, int target, FetchData.Builder fetchDataBuilder,
+            Map<Integer, Long> values) {
+        sendFetchReply(checkpointNum, target, fetchDataBuilder, values, null);
+    }
+
+    private void sendFetchReply(long checkpointNum, int target, FetchData.Builder fetchDataBuilder,
+            Map<Integer, Long> values, ByteString manifest) {
+        var builder = DataUtils.createMessage(checkpointNum, 0L, FETCH, entity.getId(), List.of(target),
+                List.of(), entity.EMPTY_BLOCK, null, null).toBuilder()
+                .setFetch(fetchDataBuilder)
+                .putAllExtraValues(values);
+        if (manifest != null) {
+            builder.putExtraData(FETCH_MANIFEST, manifest);
+        }
+
+        entity.sendMessage(builder.build());
+    }
+
+    /**
+     * Verify one chunk of the ongoing transfer and install the state once all subtrees arrived.
+     * A peer sending an invalid manifest or chunk, or lacking the checkpoint, is skipped
+     * and its partition is asked from another peer.
+     */
+    private synchronized void processChunk(MessageData message, int level) {
+        var checkpointNum = message.getSequenceNum();
+        if (transfer == null || transfer.getCheckpointNum() != checkpointNum || transfer.getLevel() != level) {
+            return;
+        }
+
+        var peer = message.getSource();
+        var partition = (int) message.getExtraValuesOrDefault(FETCH_PARTITION, 0L);
+        var valid = !faultyPeers.contains(peer) && message.containsExtraValues(FETCH_CHUNK_COUNT);
+        if (valid && message.containsExtraData(FETCH_MANIFEST)) {
+            valid = transfer.setManifest(peer, message.getExtraDataOrThrow(FETCH_MANIFEST));
+        }
+        if (valid) {
+            valid = transfer.addChunk(peer, message.getFetch().getServiceStateMap());
+        }
+
+        var done = transfer.chunkReceived(peer, partition, (int) message.getExtraValuesOrDefault(FETCH_CHUNK_COUNT, 1L));
+        var invalid = transfer.takeRejected();
+        if (!valid) {
+            invalid.add(peer);
+        }
+        for (var faulty : invalid) {
+            if (!faultyPeers.add(faulty)) {
+                continue;
+            }
+            System.out.println(entity.prefix + "Invalid FETCH chunk from " + faulty + ", checkpointNum: " + checkpointNum);
+            var partitions = faulty == peer && !valid ? Set.of(partition) : peerPartitions.getOrDefault(faulty, Set.of());
+            done = false;
+            reassign(checkpointNum, faulty, List.copyOf(partitions));
+        }
+        if (transfer == null) {
+            return;
+        }
+
+        if (transfer.isComplete()) {
+            var lastExecutedSequenceNum = (checkpointNum + 1) * checkpointSize - 1;
+            if (entity.setServiceState(transfer.getEntries(), level, transfer.getCheckpointDigest(),
+                    getClientTable(checkpointNum), lastExecutedSequenceNum)) {
+                checkpointManager.setLowWaterMark(checkpointNum);
+                System.out.println(entity.prefix + "Local service state updated from " + transferPeers.size()
+                        + " peers, records: " + transfer.getEntries().size() + ", lastExecutedSequenceNum: " + lastExecutedSequenceNum);
+                transfer = null;
+                isFetching.set(false);
+            } else {
+                // e.g. the local tree changed under the transfer
+                System.out.println(entity.prefix + "Fetch result does not match the digest, checkpointNum: " + checkpointNum);
+                fallBack(checkpointNum);
+            }
+        } else if (done) {
+            System.out.println(entity.prefix + "Fetch incomplete, missing subtrees: " + transfer.getMissingCount()
+                    + ", checkpointNum: " + checkpointNum);
+            fallBack(checkpointNum);
+        }
+    }
+
+    /**
+     * Ask the partitions of a faulty or silent peer from another peer
+     */
+    private void reassign(long checkpointNum, int faulty, List<Integer> partitions) {
+        for (var partition : partitions) {
+            transfer.drop(faulty, partition);
+            var other = transferPeers.stream().filter(node -> !faultyPeers.contains(node)).findFirst();
+            if (other.isEmpty()) {
+                fallBack(checkpointNum);
+                return;
+            }
+            requestPartition(checkpointNum, other.get(), partition, transferPeers.size());
+        }
+    }
+
+    /**
+     * Give up on the partial transfer and fetch the full state from a peer not found faulty
+     */
+    private void fallBack(long checkpointNum) {
+        transfer = null;
+        var target = transferPeers.stream().filter(node -> !faultyPeers.contains(node)).findFirst();
+        if (target.isEmpty()) {
+            System.out.println(entity.prefix + "No peer left to fetch from, checkpointNum: " + checkpointNum);
+            isFetching.set(false);
+            return;
+        }
+
+        System.out.println(entity.prefix + "Falling back to a full FETCH from " + target.get() + ", checkpointNum: " + checkpointNum);
+        requestFullState(checkpointNum, target.get());
+    }
+
+    private void requestFullState(long checkpointNum, int target) {
+        var message = DataUtils.createMessage(checkpointNum, 0L, FETCH, entity.getId(), List.of(target),
+                List.of(), entity.EMPTY_BLOCK, null, null);
+        message = message.toBuilder().setFetch(FetchData.newBuilder().setIsRequest(true)).build();
+        fullFetchDeadline = System.nanoTime() + fetchTimeout;
+        entity.sendMessage(message);
+    }
+
+    private void requestPartition(long checkpointNum, int target, int partition, int partitionCount) {
+        var tree = entity.getStateMachine().getStateTree();
+        var level = transfer.getLevel();
+        var message = DataUtils.createMessage(checkpointNum, 0L, FETCH, entity.getId(), List.of(target),
+                List.of(), entity.EMPTY_BLOCK, null, null).toBuilder()
+                .setFetch(FetchData.newBuilder().setIsRequest(true))
+                .putExtraValues(FETCH_TREE_LEVEL, level)
+                .putExtraValues(FETCH_TREE_FANOUT, tree.getFanout())
+                .putExtraValues(FETCH_PARTITION, partition)
+                .putExtraValues(FETCH_PARTITION_COUNT, partitionCount)
+                .putExtraData(FETCH_TREE_DIGESTS, ByteString.copyFrom(tree.getDigests(level)))
+                .build();
+
+        transfer.expect(target, partition);
+        peerPartitions.computeIfAbsent(target, t -> new HashSet<>()).add(partition);
+        entity.sendMessage(message);
+    }
+
+    private synchronized void addClientTable(MessageData message) {
+        if (message.containsExtraData(CLIENT_TABLE)) {
+            clientTables.computeIfAbsent(message.getSequenceNum(), num -> new HashMap<>())
+                        .computeIfAbsent(message.getExtraDataOrThrow(CLIENT_TABLE), table -> new HashSet<>())
+                        .add(message.getSource());
+        }
+    }
+
+    /**
+     * @return client table snapshot of the checkpoint sent by quorum nodes, null if there is none
+     */
+    private synchronized ByteString getClientTable(long checkpointNum) {
+        var tables = clientTables.getOrDefault(checkpointNum, Map.of());
+        for (var entry : tables.entrySet()) {
+            if (entry.getValue().size() >= quorum) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
     public boolean hasQuorum(long checkpointNum) {
         return tally.hasQuorum(checkpointNum, 0, new QuorumId(CHECKPOINT, quorum));
     }
@@ -146,6 +465,7 @@ public class CheckpointMessagePlugin implements MessagePlugin {
             // update h
             if (checkpointManager.getCheckpoint(checkpointNum).getServiceState() != null) {
                 checkpointManager.setLowWaterMark(checkpointNum);
+                checkpointManager.saveCheckpoint(checkpointNum);
             }
 
             if (checkpointNum > checkpointManager.getLastStableCheckpoint()) {
@@ -156,18 +476,37 @@ public class CheckpointMessagePlugin implements MessagePlugin {
                 if (checkpointNum > checkpointManager.getLowWaterMark() + checkpointManager.lowHighGap
                         && !isFetching.get()) {
                     var targets = tally.getQuorumNodes(checkpointNum, 0, new QuorumId(CHECKPOINT, quorum));
-                    var target = targets.iterator().next();
-                    var message = DataUtils.createMessage(checkpointNum, 0L, FETCH, entity.getId(), List.of(target),
-                            List.of(), entity.EMPTY_BLOCK, null, null);
-
-                    var fetchDataBuilder = FetchData.newBuilder().setIsRequest(true);
-                    message = message.toBuilder().setFetch(fetchDataBuilder).build();
-
-                    entity.sendMessage(message);
-
                     checkpointDigest = tally.getQuorumDigest(checkpointNum, 0);
                     isFetching.set(true);
 
+                    var tree = entity.getStateMachine().getStateTree();
+                    if (tree == null) {
+                        // full state from a single node
+                        requestFullState(checkpointNum, targets.iterator().next());
+                    } else {
+                        // differing subtrees from several up-to-date nodes in parallel
+                        // the manifest needs quorum peers agreeing on it
+                        transferPeers = targets.stream().filter(node -> node != entity.getId()).sorted()
+                                               .limit(fetchPeers > 0 ? Math.max(fetchPeers, quorum) : Long.MAX_VALUE)
+                                               .collect(Collectors.toList());
+                        for (var node : EntityMapUtils.getAllNodes()) {
+                            if (transferPeers.size() < quorum && node != entity.getId() && !transferPeers.contains(node)) {
+                                transferPeers.add(node);
+                            }
+                        }
+                        faultyPeers = new HashSet<>();
+                        peerPartitions = new HashMap<>();
+                        transfer = new StateTransfer(checkpointNum, checkpointDigest, tree, tree.getLevel(MAX_FETCH_SUBTREES),
+                                quorum, fetchTimeout);
+                        for (var partition = 0; partition < transferPeers.size(); partition++) {
+                            requestPartition(checkpointNum, transferPeers.get(partition), partition, transferPeers.size());
+                        }
+                        if (transferPeers.isEmpty()) {
+                            transfer = null;
+                            isFetching.set(false);
+                        }
+                    }
+
                     System.out.println(entity.prefix + "Sending FETCH request, checkpointNum: " + checkpointNum);
                 }
             }
@@ -176,6 +515,7 @@ public class CheckpointMessagePlugin implements MessagePlugin {
         // remove previous checkpoints
         var max = checkpointManager.getMaxCheckpoint();
         var min = checkpointManager.getMinCheckpoint();
+        clientTables.headMap(min).clear();
         if (max > min + 3) {
             for (var num = min; max > num + 3; num++) {
                 // TODO: when to remove a checkpoint?
@@ -10,6 +10,7 @@ import com.gbft.framework.data.RequestData;
 import com.gbft.framework.plugins.MessagePlugin;
 import com.gbft.framework.statemachine.StateMachine;
 import com.gbft.framework.utils.DataUtils;
+import com.gbft.framework.utils.MultiSlotProposal;
 import com.google.protobuf.ByteString;
 
 public class DigestMessagePlugin implements MessagePlugin {
@@ -28,7 +29,13 @@ public class DigestMessagePlugin implements MessagePlugin {
 
         var type = message.getMessageType();
         var hasblock = StateMachine.messages.get(type).hasRequestBlock;
-        if (hasblock) {
+        if (hasblock && MultiSlotProposal.isMultiSlot(message)) {
+            // every slot has to match its own digest
+            var slots = MultiSlotProposal.expand(message);
+            if (slots.isEmpty() || !slots.stream().allMatch(slot -> getDigest(slot.getRequestsList()).equals(slot.getDigest()))) {
+                message = DataUtils.invalidate(message);
+            }
+        } else if (hasblock) {
             var computed = getDigest(message.getRequestsList());
             if (!computed.equals(message.getDigest())) {
                 message = DataUtils.invalidate(message);
@@ -0,0 +1,276 @@
+package com.gbft.plugin.message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.gbft.framework.core.Entity;
+import com.gbft.framework.data.MessageData;
+import com.gbft.framework.data.RequestData;
+import com.gbft.framework.plugins.MessagePlugin;
+import com.gbft.framework.statemachine.StateMachine;
+import com.gbft.framework.utils.Config;
+import com.gbft.framework.utils.DataUtils;
+import com.gbft.framework.utils.EntityMapUtils;
+import com.gbft.framework.utils.MultiSlotProposal;
+import com.gbft.framework.utils.Printer;
+import com.gbft.framework.utils.Printer.Verbosity;
+import com.gbft.framework.utils.ReedSolomon;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Erasure-coded dispersal of proposed blocks.
+ *
+ * Outgoing proposals are stripped to the identifiers of their requests and
+ * carry the digests of n Reed-Solomon fragments of the block, any f + 1 of
+ * which reconstruct it. Every node gets its own fragment from the proposer and
+ * echoes it to the other nodes, so the proposer uploads about n / (f + 1)
+ * blocks instead of n. A node decodes the block once f + 1 fragments matching
+ * the fragment digests of the proposal are there, the digest plugin then checks
+ * the decoded block against the proposal.
+ *
+ * Has to be listed after `digest` and before `mac`, instead of `payload`.
+ */
+public class ErasureMessagePlugin implements MessagePlugin {
+
+    public static final int FRAGMENT_DIGESTS = 1401;
+    private static final int FRAGMENT = 1402;
+    private static final int FRAGMENT_INDEX = 1403;
+    private static final int FRAGMENT_LENGTH = 1404;
+
+    private static final int DIGEST_SIZE = 32;
+    private static final int DISPERSAL_LIMIT = 1024;
+
+    private Entity entity;
+
+    private final ReedSolomon code;
+    private final int dataShards;
+    private LongAdder decodeFailures;
+
+    // block digest -> fragments received so far
+    private Map<ByteString, Dispersal> dispersals;
+
+    public ErasureMessagePlugin(Entity entity) {
+        this.entity = entity;
+
+        var nodeCount = EntityMapUtils.nodeCount();
+        dataShards = Math.min(Config.integer("general.f") + 1, nodeCount);
+        code = new ReedSolomon(dataShards, nodeCount);
+        dispersals = new ConcurrentHashMap<>();
+        decodeFailures = new LongAdder();
+    }
+
+    @Override
+    public MessageData processIncomingMessage(MessageData message) {
+        if (entity.isClient() || message.getFlagsList().contains(DataUtils.INVALID)) {
+            return message;
+        }
+
+        if (message.getMessageType() == StateMachine.REQUEST) {
+            if (message.containsExtraData(FRAGMENT)) {
+                receiveFragment(message);
+                return DataUtils.invalidate(message);
+            }
+            return message;
+        }
+
+        if (!DataUtils.isDigestOnly(message) || !message.containsExtraData(FRAGMENT_DIGESTS)) {
+            return message;
+        }
+
+        var dispersal = getDispersal(message.getDigest(), message.getSequenceNum());
+        synchronized (dispersal) {
+            if (dispersal.block != null) {
+                return message.toBuilder()
+                              .clearRequestNums()
+                              .removeExtraData(FRAGMENT_DIGESTS)
+                              .addAllRequests(dispersal.block)
+                              .build();
+            }
+
+            var digests = message.getExtraDataOrThrow(FRAGMENT_DIGESTS);
+            if (digests.size() != code.getTotalShards() * DIGEST_SIZE) {
+                return DataUtils.invalidate(message);
+            }
+            if (dispersal.digests == null) {
+                dispersal.digests = digests;
+            }
+            dispersal.parked.add(message);
+        }
+
+        tryDecode(dispersal);
+        return DataUtils.invalidate(message);
+    }
+
+    @Override
+    public MessageData processOutgoingMessage(MessageData message) {
+        if (entity.isClient() || message.getSource() != entity.getId()) {
+            return message;
+        }
+
+        var info = StateMachine.messages.get(message.getMessageType());
+        if (!info.hasRequestBlock || StateMachine.specialMessages.contains(info.name)
+                || message.getRequestsCount() == 0 || MultiSlotProposal.isMultiSlot(message)) {
+            return message;
+        }
+
+        var requests = message.getRequestsList();
+        var data = MessageData.newBuilder().addAllRequests(requests).build().toByteArray();
+        var shards = code.encode(data);
+
+        var digests = new ArrayList<ByteString>(shards.length);
+        for (var shard : shards) {
+            digests.add(DataUtils.getDigest(shard));
+        }
+
+        // each node gets its own fragment, it echoes it to the others
+        for (var target : message.getTargetsList()) {
+            var index = EntityMapUtils.getNodeIndex(target);
+            if (target != entity.getId() && index >= 0) {
+                sendFragment(message, index, shards[index], data.length, List.of(target));
+            }
+        }
+
+        var builder = message.toBuilder().clearRequests();
+        for (var request : requests) {
+            builder.addRequestNums(request.getRequestNum());
+        }
+        return builder.putExtraData(FRAGMENT_DIGESTS, ByteString.copyFrom(digests)).build();
+    }
+
+    private void receiveFragment(MessageData message) {
+        var index = (int) message.getExtraValuesOrDefault(FRAGMENT_INDEX, -1L);
+        var length = (int) message.getExtraValuesOrDefault(FRAGMENT_LENGTH, -1L);
+        var shard = message.getExtraDataOrThrow(FRAGMENT).toByteArray();
+        if (index < 0 || index >= code.getTotalShards() || length < 0
+                || shard.length != code.getShardSize(length)) {
+            return;
+        }
+
+        var myIndex = EntityMapUtils.getNodeIndex(entity.getId());
+        var dispersal = getDispersal(message.getDigest(), message.getSequenceNum());
+        var echo = false;
+        synchronized (dispersal) {
+            if (dispersal.block != null) {
+                return;
+            }
+            if (dispersal.length < 0) {
+                dispersal.length = length;
+            }
+            dispersal.shards.putIfAbsent(index, shard);
+
+            if (index == myIndex && !dispersal.echoed) {
+                dispersal.echoed = true;
+                echo = true;
+            }
+        }
+
+        if (echo) {
+            var targets = new ArrayList<>(EntityMapUtils.getAllNodes());
+            targets.remove((Integer) entity.getId());
+            targets.remove((Integer) message.getSource());
+            if (!targets.isEmpty()) {
+                sendFragment(message, index, shard, length, targets);
+            }
+        }
+
+        tryDecode(dispersal);
+    }
+
+    /**
+     * Decode the block once enough verified fragments are there and process the parked proposals
+     */
+    private void tryDecode(Dispersal dispersal) {
+        List<MessageData> ready;
+        synchronized (dispersal) {
+            if (dispersal.block != null || dispersal.digests == null || dispersal.length < 0) {
+                return;
+            }
+
+            var verified = new HashMap<Integer, byte[]>();
+            var iterator = dispersal.shards.entrySet().iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                var index = entry.getKey();
+                var expected = dispersal.digests.substring(index * DIGEST_SIZE, (index + 1) * DIGEST_SIZE);
+                var shard = entry.getValue();
+                if (shard.length == code.getShardSize(dispersal.length)
+                        && DataUtils.getDigest(shard).equals(expected)) {
+                    verified.put(index, shard);
+                } else {
+                    iterator.remove();
+                }
+            }
+            if (verified.size() < dataShards) {
+                return;
+            }
+
+            List<RequestData> block = null;
+            var data = code.decode(verified, dispersal.length);
+            if (data != null) {
+                try {
+                    block = MessageData.parseFrom(data).getRequestsList();
+                } catch (InvalidProtocolBufferException e) {
+                    // fragments match the proposal but do not encode a block
+                }
+            }
+            if (block == null) {
+                // the proposer sent garbage, the proposal cannot be filled in
+                decodeFailures.increment();
+                dispersal.shards.clear();
+                dispersal.parked.clear();
+                Printer.print(Verbosity.V, entity.prefix, "Erasure decoding failed for seqnum " + dispersal.seqnum
+                        + ", failures: " + decodeFailures.sum());
+                return;
+            }
+
+            dispersal.block = block;
+            dispersal.shards.clear();
+            ready = new ArrayList<>(dispersal.parked);
+            dispersal.parked.clear();
+        }
+
+        for (var message : ready) {
+            entity.handleMessage(message);
+        }
+    }
+
+    private void sendFragment(MessageData proposal, int index, byte[] shard, int length, List<Integer> targets) {
+        var fragment = DataUtils.createMessage(proposal.getSequenceNum(), proposal.getViewNum(), StateMachine.REQUEST,
+                entity.getId(), targets, null, null, null, proposal.getDigest());
+        fragment = fragment.toBuilder()
+                           .putExtraValues(FRAGMENT_INDEX, index)
+                           .putExtraValues(FRAGMENT_LENGTH, length)
+                           .putExtraData(FRAGMENT, ByteString.copyFrom(shard))
+                           .build();
+        entity.sendMessage(entity.processMessage(fragment));
+    }
+
+    private Dispersal getDispersal(ByteString digest, long seqnum) {
+        if (dispersals.size() > DISPERSAL_LIMIT) {
+            var lastExecuted = entity.getLastExecutedSequenceNum();
+            dispersals.values().removeIf(dispersal -> dispersal.seqnum <= lastExecuted);
+        }
+        return dispersals.computeIfAbsent(digest, d -> new Dispersal(seqnum));
+    }
+
+    private static class Dispersal {
+        private final long seqnum;
+        private int length = -1;
+        // concatenated fragment digests from the proposal, null until it arrives
+        private ByteString digests;
+        // fragment index -> fragment, not verified before digests are known
+        private Map<Integer, byte[]> shards = new HashMap<>();
+        private boolean echoed;
+        private List<RequestData> block;
+        private List<MessageData> parked = new ArrayList<>();
+
+        private Dispersal(long seqnum) {
+            this.seqnum = seqnum;
+        }
+    }
+}
@@ -22,8 +22,10 @@ import com.gbft.framework.plugins.InitializablePluginInterface;
 import com.gbft.framework.plugins.MessagePlugin;
 import com.gbft.framework.utils.DataUtils;
 import com.gbft.framework.utils.EntityMapUtils;
+import com.gbft.framework.utils.MultiSlotProposal;
 import com.gbft.framework.utils.Printer;
 import com.gbft.framework.utils.Printer.Verbosity;
+import com.gbft.framework.utils.VoteVector;
 import com.google.protobuf.ByteString;
 
 public class MacMessagePlugin implements MessagePlugin, InitializablePluginInterface {
@@ -37,6 +39,10 @@ public class MacMessagePlugin implements MessagePlugin, InitializablePluginInter
     private static final int INIT = 0;
     private static final int SECRET_KEY = 101;
     private static final int MAC_VECTOR = 1001;
+    // extra data that is part of the message content
+    private static final List<Integer> AUTHENTICATED_DATA = List.of(VoteVector.VOTE_VECTOR,
+            MultiSlotProposal.MULTI_SLOT, PayloadMessagePlugin.PAYLOAD_CLIENTS, ErasureMessagePlugin.FRAGMENT_DIGESTS,
+            CheckpointMessagePlugin.CLIENT_TABLE);
 
     public MacMessagePlugin(Entity entity) {
         this.entity = entity;
@@ -70,6 +76,8 @@ public class MacMessagePlugin implements MessagePlugin, InitializablePluginInter
         for (var request : requestList) {
             copyBuilder.addRequests(request.toBuilder().clearRequestDummy().build());
         }
+        // packed votes, slots and payload references are authenticated together with the message
+        keepAuthenticatedData(message, copyBuilder);
         message = copyBuilder.build();
 
         var bytes = message.toByteArray();
@@ -82,6 +90,11 @@ public class MacMessagePlugin implements MessagePlugin, InitializablePluginInter
                           .build();
     }
 
+    @Override
+    public boolean isAuthenticator() {
+        return true;
+    }
+
     @Override
     public void handleInitEvent(PluginData pluginData) {
         var messageType = pluginData.getMessageType();
@@ -128,6 +141,14 @@ public class MacMessagePlugin implements MessagePlugin, InitializablePluginInter
         return initialized;
     }
 
+    private void keepAuthenticatedData(MessageData message, MessageData.Builder builder) {
+        for (var key : AUTHENTICATED_DATA) {
+            if (message.containsExtraData(key)) {
+                builder.putExtraData(key, message.getExtraDataOrThrow(key));
+            }
+        }
+    }
+
     private byte[] generateMacVector(byte[] data, List<Integer> targets) {
         var stream = new ByteArrayOutputStream();
         stream.write(targets.size());
@@ -190,6 +211,7 @@ public class MacMessagePlugin implements MessagePlugin, InitializablePluginInter
         for (var request : requestList) {
             copyBuilder.addRequests(request.toBuilder().clearRequestDummy().build());
         }
+        keepAuthenticatedData(message, copyBuilder);
         var copy = copyBuilder.build();
 
         var computed = generateMac(copy.toByteArray(), secretKey);
@@ -0,0 +1,305 @@
+package com.gbft.plugin.message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.gbft.framework.core.Entity;
+import com.gbft.framework.data.MessageData;
+import com.gbft.framework.data.RequestData;
+import com.gbft.framework.plugins.MessagePlugin;
+import com.gbft.framework.statemachine.StateMachine;
+import com.gbft.framework.utils.DataUtils;
+import com.gbft.framework.utils.EntityMapUtils;
+import com.gbft.framework.utils.MultiSlotProposal;
+import com.google.protobuf.ByteString;
+
+/**
+ * Separates request payloads from ordering, proposals only carry request identifiers.
+ *
+ * Clients also send every request to the nodes it is not addressed to, marked
+ * as payload only, and nodes keep these payloads aside instead of queueing them
+ * for proposal. Outgoing proposals are stripped to the identifiers of their
+ * requests, reqnums in `request_nums` and clients under `PAYLOAD_CLIENTS`, and
+ * are filled in from the kept payloads on receipt. A proposal with missing
+ * payloads is parked while the missing requests are fetched from its sender.
+ *
+ * Payloads are only taken from the request's own client or from the node they
+ * were fetched from, and a kept payload is never replaced. A filled-in block
+ * that does not match the proposal digest is fetched from the proposer once.
+ *
+ * Has to be listed after `digest` and before `mac`, so that proposals are
+ * stripped before they are authenticated and filled in before their digest is
+ * checked.
+ */
+public class PayloadMessagePlugin implements MessagePlugin {
+
+    public static final int PAYLOAD_CLIENTS = 1301;
+    private static final int PAYLOAD_ONLY = 1302;
+    private static final int PAYLOAD_FETCH = 1303;
+
+    private static final int CLIENT_PAYLOAD_LIMIT = 4096;
+    private static final int PARKED_LIMIT = 1024;
+
+    private Entity entity;
+
+    // client -> reqnum -> request
+    private Map<Integer, ConcurrentSkipListMap<Long, RequestData>> payloads;
+    // digest-only proposals waiting for payloads, guarded by itself
+    private LinkedList<MessageData> parked;
+    // (client, reqnum) -> node the payload was fetched from
+    private Map<List<Long>, Integer> fetching;
+    // digest -> seqnum of proposals whose kept payloads did not match and were fetched again
+    private Map<ByteString, Long> refetched;
+
+    public PayloadMessagePlugin(Entity entity) {
+        this.entity = entity;
+
+        payloads = new ConcurrentHashMap<>();
+        parked = new LinkedList<>();
+        fetching = new ConcurrentHashMap<>();
+        refetched = new ConcurrentHashMap<>();
+
+        // payload fetches are answered from the request blocks of executed sequences
+        entity.getCheckpointManager().keepRequestBlocks();
+    }
+
+    @Override
+    public MessageData processIncomingMessage(MessageData message) {
+        if (entity.isClient() || message.getFlagsList().contains(DataUtils.INVALID)) {
+            return message;
+        }
+
+        if (message.getMessageType() == StateMachine.REQUEST) {
+            if (message.containsExtraValues(PAYLOAD_FETCH)) {
+                sendPayloads(message);
+                return DataUtils.invalidate(message);
+            } else if (message.containsExtraValues(PAYLOAD_ONLY)) {
+                for (var request : message.getRequestsList()) {
+                    var key = List.of((long) request.getClient(), request.getRequestNum());
+                    if (request.getClient() != message.getSource() && !fetching.remove(key, message.getSource())) {
+                        // neither from its client nor fetched from this node
+                        continue;
+                    }
+                    var requests = payloads.computeIfAbsent(request.getClient(), c -> new ConcurrentSkipListMap<>());
+                    requests.putIfAbsent(request.getRequestNum(), request);
+                    // payloads of requests that never got proposed
+                    while (requests.size() > CLIENT_PAYLOAD_LIMIT) {
+                        requests.pollFirstEntry();
+                    }
+                }
+                retryParked();
+                return DataUtils.invalidate(message);
+            }
+            return message;
+        }
+
+        if (!DataUtils.isDigestOnly(message)) {
+            return message;
+        }
+
+        var clients = unpackClients(message);
+        if (clients.length != message.getRequestNumsCount()) {
+            return DataUtils.invalidate(message);
+        }
+
+        var missing = getMissing(message, clients);
+        if (!missing.isEmpty()) {
+            park(message);
+            sendFetch(message, clients, missing);
+            return DataUtils.invalidate(message);
+        }
+
+        var block = new ArrayList<RequestData>(clients.length);
+        for (var i = 0; i < clients.length; i++) {
+            var requests = payloads.get(clients[i]);
+            var request = requests == null ? null : requests.get(message.getRequestNums(i));
+            if (request == null) {
+                // evicted in the meantime
+                park(message);
+                sendFetch(message, clients, getMissing(message, clients));
+                return DataUtils.invalidate(message);
+            }
+            block.add(request);
+        }
+        for (var request : block) {
+            payloads.get(request.getClient()).remove(request.getRequestNum());
+        }
+
+        if (!DataUtils.getDigest(block).equals(message.getDigest())) {
+            // a kept payload differs from the proposed one, take the block from the proposer instead
+            if (refetched.size() > PARKED_LIMIT) {
+                var lastExecuted = entity.getLastExecutedSequenceNum();
+                refetched.values().removeIf(seqnum -> seqnum <= lastExecuted);
+            }
+            if (refetched.putIfAbsent(message.getDigest(), message.getSequenceNum()) != null) {
+                return DataUtils.invalidate(message);
+            }
+            park(message);
+            sendFetch(message, clients, getMissing(message, clients));
+            return DataUtils.invalidate(message);
+        }
+
+        return message.toBuilder()
+                      .clearRequestNums()
+                      .removeExtraData(PAYLOAD_CLIENTS)
+                      .addAllRequests(block)
+                      .build();
+    }
+
+    @Override
+    public MessageData processOutgoingMessage(MessageData message) {
+        var type = message.getMessageType();
+        if (entity.isClient()) {
+            if (type == StateMachine.REQUEST && !message.containsExtraValues(PAYLOAD_ONLY)) {
+                sendPayloadCopies(message);
+            }
+            return message;
+        }
+
+        var info = StateMachine.messages.get(type);
+        if (!info.hasRequestBlock || StateMachine.specialMessages.contains(info.name)
+                || message.getRequestsCount() == 0 || MultiSlotProposal.isMultiSlot(message)) {
+            return message;
+        }
+
+        var requests = message.getRequestsList();
+        var clients = ByteBuffer.allocate(requests.size() * Integer.BYTES);
+        var builder = message.toBuilder().clearRequests();
+        for (var request : requests) {
+            builder.addRequestNums(request.getRequestNum());
+            clients.putInt(request.getClient());
+        }
+        clients.flip();
+
+        return builder.putExtraData(PAYLOAD_CLIENTS, ByteString.copyFrom(clients)).build();
+    }
+
+    private void sendPayloadCopies(MessageData message) {
+        var targets = new ArrayList<>(EntityMapUtils.getAllNodes());
+        targets.removeAll(message.getTargetsList());
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        var copy = message.toBuilder().clearTargets().addAllTargets(targets).putExtraValues(PAYLOAD_ONLY, 1L).build();
+        entity.sendMessage(entity.processMessage(copy));
+    }
+
+    private List<Integer> getMissing(MessageData message, int[] clients) {
+        var missing = new ArrayList<Integer>();
+        for (var i = 0; i < clients.length; i++) {
+            var requests = payloads.get(clients[i]);
+            if (requests == null || !requests.containsKey(message.getRequestNums(i))) {
+                missing.add(i);
+            }
+        }
+        return missing;
+    }
+
+    private void park(MessageData message) {
+        synchronized (parked) {
+            parked.addLast(message);
+            if (parked.size() > PARKED_LIMIT) {
+                parked.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Process parked proposals again once all their payloads are here
+     */
+    private void retryParked() {
+        var ready = new ArrayList<MessageData>();
+        synchronized (parked) {
+            var lastExecuted = entity.getLastExecutedSequenceNum();
+            var iterator = parked.iterator();
+            while (iterator.hasNext()) {
+                var message = iterator.next();
+                if (message.getSequenceNum() <= lastExecuted) {
+                    iterator.remove();
+                } else if (getMissing(message, unpackClients(message)).isEmpty()) {
+                    iterator.remove();
+                    ready.add(message);
+                }
+            }
+        }
+
+        for (var message : ready) {
+            entity.handleMessage(message);
+        }
+    }
+
+    /**
+     * Ask the sender of a proposal for the requests missing here
+     */
+    private void sendFetch(MessageData message, int[] clients, List<Integer> missing) {
+        if (fetching.size() > CLIENT_PAYLOAD_LIMIT) {
+            // answers that never came
+            fetching.clear();
+        }
+
+        var reqnums = new ArrayList<Long>(missing.size());
+        var fetchClients = ByteBuffer.allocate(missing.size() * Integer.BYTES);
+        for (var i : missing) {
+            reqnums.add(message.getRequestNums(i));
+            fetchClients.putInt(clients[i]);
+            fetching.put(List.of((long) clients[i], message.getRequestNums(i)), message.getSource());
+        }
+        fetchClients.flip();
+
+        var fetch = DataUtils.createMessage(message.getSequenceNum(), message.getViewNum(), StateMachine.REQUEST,
+                entity.getId(), List.of(message.getSource()), reqnums, null, null, null);
+        fetch = fetch.toBuilder()
+                     .putExtraData(PAYLOAD_CLIENTS, ByteString.copyFrom(fetchClients))
+                     .putExtraValues(PAYLOAD_FETCH, 1L)
+                     .build();
+        entity.sendMessage(entity.processMessage(fetch));
+    }
+
+    /**
+     * Answer a fetch with the requested payloads of the proposed block
+     */
+    private void sendPayloads(MessageData fetch) {
+        var seqnum = fetch.getSequenceNum();
+        var checkpointManager = entity.getCheckpointManager();
+        if (seqnum <= checkpointManager.getReleasedSequenceNum()
+                || checkpointManager.getCheckpointNum(seqnum) < checkpointManager.getMinCheckpoint()) {
+            return;
+        }
+
+        var block = checkpointManager.getCheckpointForSeq(seqnum).getRequestBlock(seqnum);
+        var clients = unpackClients(fetch);
+        if (block == null || clients.length != fetch.getRequestNumsCount()) {
+            return;
+        }
+
+        var wanted = new HashSet<List<Long>>();
+        for (var i = 0; i < clients.length; i++) {
+            wanted.add(List.of((long) clients[i], fetch.getRequestNums(i)));
+        }
+        var found = block.stream()
+                         .filter(request -> wanted.contains(List.of((long) request.getClient(), request.getRequestNum())))
+                         .toList();
+        if (found.isEmpty()) {
+            return;
+        }
+
+        var reply = DataUtils.createMessage(seqnum, fetch.getViewNum(), StateMachine.REQUEST, entity.getId(),
+                List.of(fetch.getSource()), null, found, null, null);
+        reply = reply.toBuilder().putExtraValues(PAYLOAD_ONLY, 1L).build();
+        entity.sendMessage(entity.processMessage(reply));
+    }
+
+    private int[] unpackClients(MessageData message) {
+        var data = message.getExtraDataOrDefault(PAYLOAD_CLIENTS, ByteString.EMPTY);
+        var clients = new int[data.size() / Integer.BYTES];
+        data.asReadOnlyByteBuffer().asIntBuffer().get(clients);
+        return clients;
+    }
+}
@@ -87,9 +87,7 @@ public class ReadOnlyMessagePlugin implements MessagePlugin {
             var read_only = message.getRequestsList().stream().allMatch(req -> req.getOperationValue() == Operation.READ_ONLY_VALUE);
             if (!read_only) return message;
             // instant execution
-            for (var request : message.getRequestsList()) {
-                this.executionResults.put(request.getRequestNum(), this.entity.dataset.execute(request));
-            }
+            this.executionResults.putAll(this.entity.getStateMachine().query(message.getRequestsList()));
             // batching
             var blockSize = Config.integer("benchmark.block-size");
 
@@ -116,7 +114,9 @@ public class ReadOnlyMessagePlugin implements MessagePlugin {
             var targets = List.copyOf(block.stream().map(r -> r.getClient()).collect(Collectors.toSet()));
             var sendBlockMessage = DataUtils.createMessage(null, 0, StateMachine.REPLY, entity.getId(), targets, null, block, replies, DataUtils.getDigest(block));
 
-            entity.sendMessage(entity.processMessage(sendBlockMessage));
+            for (var reply : DataUtils.splitReply(sendBlockMessage)) {
+                entity.sendMessage(entity.processMessage(reply));
+            }
 
             return DataUtils.invalidate(message);
         }
@@ -23,6 +23,8 @@ public class SpeculateMessagePlugin implements MessagePlugin {
         this.entity = entity;
         rolePlugin = entity.getRolePlugin();
         checkpointManager = entity.getCheckpointManager();
+        // commits of executed sequences are answered with their request block
+        checkpointManager.keepRequestBlocks();
         COMMIT = StateMachine.messages.indexOf(StateMachine.findMessage("commit", "zyzzyva_"));
     }
 
@@ -40,6 +42,10 @@ public class SpeculateMessagePlugin implements MessagePlugin {
             if (checkpointManager.getCheckpointForSeq(seqnum).getState(seqnum) == StateMachine.EXECUTED) {
                 var checkpoint = checkpointManager.getCheckpointForSeq(seqnum);
                 var block = checkpoint.getRequestBlock(seqnum);
+                if (block == null) {
+                    // request block already released
+                    return message;
+                }
                 var viewnum = checkpoint.getMessageTally().getMaxQuorum(seqnum);
                 var target = List.of(message.getSource());
                 var response = entity.createMessage(seqnum, viewnum, block, COMMIT, entity.getId(), target);
@@ -0,0 +1,204 @@
+package com.gbft.plugin.pipeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.gbft.framework.core.Entity;
+import com.gbft.framework.data.MessageData;
+import com.gbft.framework.plugins.PipelinePlugin;
+import com.gbft.framework.statemachine.StateMachine;
+import com.gbft.framework.utils.Config;
+import com.gbft.framework.utils.DataUtils;
+import com.gbft.framework.utils.MultiSlotProposal;
+import com.gbft.framework.utils.VoteVector;
+
+/**
+ * Buffers broadcast messages per set of targets and sends each buffer as one
+ * message block, once it holds `benchmark.pipeline-batch-max-messages` messages
+ * or its oldest message waited `benchmark.pipeline-batch-max-delay-us`.
+ *
+ * Proposals (messages carrying requests), requests and replies are urgent,
+ * they flush their buffer immediately so that batching only delays votes.
+ *
+ * With `benchmark.pipeline-vote-vectors`, buffered votes of the same type and
+ * view are packed into one vote vector per flush, see {@link VoteVector}.
+ *
+ * With `benchmark.pipeline-max-slots` above 1, a proposal is held back while
+ * another block is already pending, and up to that many proposals are sent as
+ * one multi-slot proposal, see {@link MultiSlotProposal}.
+ *
+ * Messages reach the pipeline unauthenticated and are authenticated once they
+ * are sent, so a packed message costs one MAC vector instead of one per part.
+ */
+public class BatchedPipelinePlugin implements PipelinePlugin, Runnable {
+
+    private Entity entity;
+
+    private final long maxDelay;
+    private final int maxMessages;
+    private final boolean voteVectors;
+    private final int maxSlots;
+
+    private ReentrantLock pendingLock;
+    // targets -> buffered messages, in sending order
+    private Map<List<Integer>, List<MessageData>> pendingMessages;
+    // targets -> arrival of the oldest buffered message
+    private Map<List<Integer>, Long> pendingSince;
+    private Thread timer;
+
+    public BatchedPipelinePlugin(Entity entity) {
+        this.entity = entity;
+
+        var delay = Config.integer("benchmark.pipeline-batch-max-delay-us");
+        maxDelay = (delay > 0 ? delay : 200) * 1000L;
+        var messages = Config.integer("benchmark.pipeline-batch-max-messages");
+        maxMessages = messages > 0 ? messages : 64;
+        voteVectors = Config.bool("benchmark.pipeline-vote-vectors");
+        maxSlots = Config.integer("benchmark.pipeline-max-slots");
+
+        pendingLock = new ReentrantLock();
+        pendingMessages = new HashMap<>();
+        pendingSince = new HashMap<>();
+
+        timer = new Thread(this);
+        entity.registerThread(timer);
+    }
+
+    @Override
+    public void sendMessage(MessageData message, int sender) {
+        if (entity.isClient() || message.getTargetsCount() <= 1) {
+            entity.getCoordinator().sendMessages(List.of(entity.authenticate(message)), sender);
+            return;
+        }
+
+        var targets = message.getTargetsList();
+        var urgent = message.getRequestsCount() > 0 || DataUtils.isDigestOnly(message)
+                || message.getMessageType() == StateMachine.REQUEST || message.getMessageType() == StateMachine.REPLY;
+        var proposal = maxSlots > 1 && MultiSlotProposal.isProposal(message);
+
+        pendingLock.lock();
+        var buffer = pendingMessages.computeIfAbsent(targets, key -> new ArrayList<>());
+        buffer.add(message);
+        if (proposal && entity.hasPendingBlock()) {
+            // the next block follows right away, hold the proposal to send them together
+            urgent = buffer.stream().filter(MultiSlotProposal::isProposal).count() >= maxSlots;
+        }
+        if (urgent || buffer.size() >= maxMessages) {
+            pendingMessages.remove(targets);
+            pendingSince.remove(targets);
+            pendingLock.unlock();
+
+            send(buffer, sender);
+            return;
+        }
+
+        var wakeup = pendingSince.isEmpty();
+        pendingSince.putIfAbsent(targets, System.nanoTime());
+        pendingLock.unlock();
+
+        if (wakeup) {
+            LockSupport.unpark(timer);
+        }
+    }
+
+    /**
+     * Flush buffers whose oldest message is due
+     */
+    @Override
+    public void run() {
+        var due = new ArrayList<List<MessageData>>();
+        while (entity.isRunning()) {
+            var now = System.nanoTime();
+            var next = now + maxDelay;
+
+            pendingLock.lock();
+            var iterator = pendingSince.entrySet().iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                if (now - entry.getValue() >= maxDelay) {
+                    due.add(pendingMessages.remove(entry.getKey()));
+                    iterator.remove();
+                } else {
+                    next = Math.min(next, entry.getValue() + maxDelay);
+                }
+            }
+            pendingLock.unlock();
+
+            for (var messages : due) {
+                send(messages, entity.getId());
+            }
+            due.clear();
+
+            LockSupport.parkNanos(next - now);
+        }
+    }
+
+    private void send(List<MessageData> messages, int sender) {
+        if (voteVectors && messages.size() > 1) {
+            messages = pack(messages, VoteVector::isVote, VoteVector::aggregate);
+        }
+        if (maxSlots > 1 && messages.size() > 1) {
+            messages = pack(messages, MultiSlotProposal::isProposal, MultiSlotProposal::aggregate);
+        }
+
+        var authenticated = new ArrayList<MessageData>(messages.size());
+        for (var message : messages) {
+            authenticated.add(entity.authenticate(message));
+        }
+        entity.getCoordinator().sendMessages(authenticated, sender);
+    }
+
+    /**
+     * Replace packable messages sharing type and view by one message at the position of the first of them
+     */
+    private List<MessageData> pack(List<MessageData> messages, Predicate<MessageData> packable,
+            Function<List<MessageData>, MessageData> aggregate) {
+        var packed = new ArrayList<MessageData>();
+        // (type, view) -> messages, and the position of their packed message
+        var groups = new LinkedHashMap<List<Long>, List<MessageData>>();
+        var positions = new HashMap<List<Long>, Integer>();
+
+        for (var message : messages) {
+            if (!packable.test(message)) {
+                packed.add(message);
+                continue;
+            }
+
+            var key = List.of((long) message.getMessageType(), message.getViewNum());
+            var group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+                positions.put(key, packed.size());
+                packed.add(message);
+            }
+            group.add(message);
+        }
+
+        for (var entry : groups.entrySet()) {
+            var group = entry.getValue();
+            if (group.size() > 1) {
+                packed.set(positions.get(entry.getKey()), aggregate.apply(group));
+            }
+        }
+
+        return packed;
+    }
+
+    @Override
+    public int getMaxActiveSequences() {
+        return 100;
+    }
+
+    @Override
+    public boolean authenticatesOnSend() {
+        return true;
+    }
+}
@@ -101,4 +101,10 @@ public class QcPipelinePlugin implements PipelinePlugin {
     public int getMaxActiveSequences() {
         return pendingSize;
     }
+
+    @Override
+    public boolean isWindowAdjustable() {
+        // chained messages are only sent once pendingSize sequences are pending
+        return false;
+    }
 }
@@ -1,7 +1,5 @@
 package com.gbft.plugin.transition;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.List;
 
 import com.gbft.framework.core.Entity;
@@ -12,7 +10,6 @@ import com.gbft.framework.statemachine.Transition.UpdateMode;
 import com.gbft.framework.utils.CheckpointManager;
 import com.gbft.framework.utils.Config;
 import com.gbft.framework.utils.DataUtils;
-import com.google.protobuf.ByteString;
 
 public class CheckpointTransitionPlugin implements TransitionPlugin {
 
@@ -53,7 +50,8 @@ public class CheckpointTransitionPlugin implements TransitionPlugin {
                 return transition;
             }
 
-            var digest = getCheckpointDigest(lowMark);
+            // covers every executed sequence, WAL replay included
+            var digest = checkpointManager.getCheckpoint(lowMark).getSequenceDigest();
             var targets = entity.getRolePlugin().getRoleEntities(0, 0, StateMachine.NORMAL_PHASE, StateMachine.NODE);
             var message = DataUtils.createMessage(lowMark, 0L, CHECKPOINT, entity.getId(), targets, List.of(),
                     entity.EMPTY_BLOCK, null, digest);
@@ -63,29 +61,7 @@ public class CheckpointTransitionPlugin implements TransitionPlugin {
         return transition;
     }
 
-    private ByteString getCheckpointDigest(long checkpointNum) {
-        var stream = new ByteArrayOutputStream();
-        try {
-            var min = checkpointNum * checkpointSize;
-            var max = min + checkpointSize - 1;
-            var checkpoint = checkpointManager.getCheckpoint(checkpointNum);
-            var tally = checkpoint.getMessageTally();
-            for (var seqnum = min; seqnum < max; seqnum++) {
-                var digest = tally.getQuorumDigest(seqnum, tally.getMaxQuorum(seqnum));
-                stream.write(digest.toByteArray());
-            }
-
-            stream.flush();
-            stream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return DataUtils.getDigest(stream.toByteArray());
-    }
-
     @Override
     public void postTransition(long seqnum, int oldState, Transition transition) {
-
     }
 }